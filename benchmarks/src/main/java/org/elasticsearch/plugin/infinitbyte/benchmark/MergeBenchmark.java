@@ -0,0 +1,134 @@
+package org.elasticsearch.plugin.infinitbyte.benchmark;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.plugin.infinitbyte.SourceMerger;
+import org.elasticsearch.plugin.infinitbyte.XContentSourceMerger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the merge path for a range of document sizes, patch sizes, array lengths and
+ * array merge modes. The defaults are a small grid that runs in a few minutes, pass <tt>-p</tt> for
+ * other values and <tt>-prof gc</tt> for the allocation rate:
+ * <pre>
+ * java -jar target/benchmarks.jar
+ * java -jar target/benchmarks.jar -p docKb=1,50,200 -p patchFields=1,10,100 -p arrayLength=10,1000,50000
+ * java -jar target/benchmarks.jar merge -p docKb=200 -p mode=append -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MergeBenchmark {
+
+    /** approximate size of the stored source */
+    @Param({"1", "200"})
+    public int docKb;
+
+    /** number of top level fields the patch replaces, besides the array field */
+    @Param({"10"})
+    public int patchFields;
+
+    /** length of the array field the patch merges into */
+    @Param({"10", "1000"})
+    public int arrayLength;
+
+    @Param({"replace", "append", "remove"})
+    public String mode;
+
+    private final SourceMerger merger = new XContentSourceMerger();
+
+    private BytesReference source;
+    private BytesReference patchBytes;
+    private Map<String, Object> patch;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(0);
+
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        builder.startArray("tags");
+        for (int i = 0; i < arrayLength; i++) {
+            builder.value("tag_" + i);
+        }
+        builder.endArray();
+        int field = 0;
+        while (builder.bytes().length() < docKb * 1024) {
+            builder.field("field_" + field++, randomText(random, 64));
+        }
+        source = builder.endObject().bytes();
+
+        patch = Maps.newLinkedHashMap();
+        for (int i = 0; i < patchFields; i++) {
+            patch.put("field_" + i, randomText(random, 64));
+        }
+        List<Object> tags = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            if ("remove".equals(mode)) {
+                tags.add("tag_" + random.nextInt(arrayLength));
+            } else {
+                tags.add("new_tag_" + i);
+            }
+        }
+        patch.put("tags", tags);
+        patchBytes = XContentFactory.jsonBuilder().map(patch).bytes();
+    }
+
+    private static String randomText(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * The merge alone, with the patch already parsed.
+     */
+    @Benchmark
+    public BytesReference merge() throws IOException {
+        return merger.merge(source, patch, false, mode, 0, 0L).source().bytes();
+    }
+
+    /**
+     * Parsing the pending changes from the request body, then merging them.
+     */
+    @Benchmark
+    public BytesReference parseAndMerge() throws IOException {
+        Map<String, Object> pending = XContentHelper.convertToMap(patchBytes, true).v2();
+        return merger.merge(source, pending, false, mode, 0, 0L).source().bytes();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(MergeBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,333 @@
+package org.elasticsearch.plugin.infinitbyte.loadtest;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.collect.Sets;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.elasticsearch.plugin.infinitbyte.BulkPartialUpdateAction;
+import org.elasticsearch.plugin.infinitbyte.BulkPartialUpdateItemResponse;
+import org.elasticsearch.plugin.infinitbyte.BulkPartialUpdateRequest;
+import org.elasticsearch.plugin.infinitbyte.BulkPartialUpdateResponse;
+import org.elasticsearch.plugin.infinitbyte.PartialUpdateAction;
+import org.elasticsearch.plugin.infinitbyte.PartialUpdatePlugin;
+import org.elasticsearch.plugin.infinitbyte.PartialUpdateRequest;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives partial updates against a local node running in this JVM, with the plugin loaded from the
+ * classpath, and reports throughput, latency, conflicts and lost updates:
+ * <pre>
+ * java -Xmx2g -jar target/loadtest.jar threads=16 ids=hot mode=append bulk=50 duration=60s
+ * </pre>
+ * The node uses local transport and discovery and keeps its data in a temporary directory, nothing
+ * goes over the network. See {@link Workload} for the arguments.
+ */
+public class LoadTest {
+
+    private final Workload workload;
+    private final Client client;
+
+    /** per writer, per document: the last sequence number the writer got acknowledged */
+    private final long[][] acked;
+    private final AtomicLong increments = new AtomicLong();
+
+    private volatile boolean measuring;
+    private volatile boolean stopped;
+
+    LoadTest(Workload workload, Client client) {
+        this.workload = workload;
+        this.client = client;
+        this.acked = new long[workload.threads][workload.docs];
+        for (long[] writer : acked) {
+            Arrays.fill(writer, -1);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> arguments = Maps.newHashMap();
+        for (String arg : args) {
+            int i = arg.indexOf('=');
+            if (i <= 0) {
+                System.err.println("arguments are key=value, got [" + arg + "]");
+                System.exit(1);
+            }
+            arguments.put(arg.substring(0, i), arg.substring(i + 1));
+        }
+        Workload workload = new Workload(arguments);
+        System.out.println("workload: " + workload);
+
+        File home = tempHome();
+        Node node = startNode(home, ImmutableSettings.EMPTY);
+        try {
+            new LoadTest(workload, node.client()).run();
+        } finally {
+            node.close();
+            deleteRecursively(home);
+        }
+    }
+
+    static File tempHome() throws IOException {
+        File home = File.createTempFile("partialupdate-loadtest", "");
+        home.delete();
+        home.mkdirs();
+        return home;
+    }
+
+    /**
+     * Starts a local node in this JVM with the plugin loaded, <tt>settings</tt> override the defaults.
+     */
+    static Node startNode(File home, Settings settings) {
+        return NodeBuilder.nodeBuilder()
+                .local(true)
+                .settings(ImmutableSettings.settingsBuilder()
+                        .put("cluster.name", "partialupdate-loadtest")
+                        .put("path.home", home.getAbsolutePath())
+                        .put("plugin.types", PartialUpdatePlugin.class.getName())
+                        .put("plugins.load_classpath_plugins", false)
+                        .put("http.enabled", false)
+                        .put("discovery.zen.ping.multicast.enabled", false)
+                        .put("gateway.type", "none")
+                        .put("index.number_of_replicas", 0)
+                        .put(settings))
+                .node();
+    }
+
+    void run() throws Exception {
+        setup();
+
+        Recorder[] recorders = new Recorder[workload.threads];
+        final CountDownLatch done = new CountDownLatch(workload.threads);
+        for (int i = 0; i < workload.threads; i++) {
+            final int writer = i;
+            recorders[i] = new Recorder();
+            final Recorder recorder = recorders[i];
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        write(writer, recorder);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "loadtest-writer-" + i);
+            thread.start();
+        }
+
+        Thread.sleep(workload.warmup.millis());
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        long start = System.nanoTime();
+        measuring = true;
+        Thread.sleep(workload.duration.millis());
+        measuring = false;
+        long elapsed = System.nanoTime() - start;
+        gcCount = gcCount() - gcCount;
+        gcMillis = gcMillis() - gcMillis;
+        stopped = true;
+        done.await();
+
+        Recorder total = new Recorder();
+        for (Recorder recorder : recorders) {
+            total.add(recorder);
+        }
+        client.admin().indices().prepareRefresh(Workload.INDEX).execute().actionGet();
+        long lost = verify();
+        total.report(System.out, elapsed, workload.bulk > 0 ? workload.bulk : 1);
+        System.out.println("gc: collections [" + gcCount + "], time [" + TimeValue.timeValueMillis(gcMillis) + "]");
+        System.out.println("lost updates: " + lost);
+    }
+
+    private void setup() throws Exception {
+        client.admin().indices().prepareCreate(Workload.INDEX)
+                .setSettings(ImmutableSettings.settingsBuilder()
+                        .put("number_of_shards", workload.shards)
+                        .put("number_of_replicas", 0))
+                .execute().actionGet();
+        client.admin().cluster().prepareHealth(Workload.INDEX).setWaitForGreenStatus().execute().actionGet();
+
+        Random random = new Random(workload.seed);
+        BulkRequestBuilder bulk = client.prepareBulk();
+        for (int doc = 0; doc < workload.docs; doc++) {
+            bulk.add(client.prepareIndex(Workload.INDEX, Workload.TYPE, Integer.toString(doc)).setSource(workload.document(doc, random)));
+            if (bulk.numberOfActions() == 1000 || doc == workload.docs - 1) {
+                BulkResponse response = bulk.execute().actionGet();
+                if (response.hasFailures()) {
+                    throw new IllegalStateException("failed to index documents: " + response.buildFailureMessage());
+                }
+                bulk = client.prepareBulk();
+            }
+        }
+        client.admin().indices().prepareRefresh(Workload.INDEX).execute().actionGet();
+        System.out.println("indexed [" + workload.docs + "] documents");
+    }
+
+    private void write(int writer, Recorder recorder) {
+        Random random = new Random(workload.seed + writer + 1);
+        long seq = 0;
+        while (!stopped) {
+            boolean measured = measuring;
+            long start = System.nanoTime();
+            try {
+                if (workload.bulk > 0) {
+                    int[] docs = new int[workload.bulk];
+                    long[] seqs = new long[workload.bulk];
+                    boolean[] repeated = new boolean[workload.bulk];
+                    Set<Integer> seen = Sets.newHashSet();
+                    BulkPartialUpdateRequest request = new BulkPartialUpdateRequest();
+                    for (int i = 0; i < docs.length; i++) {
+                        docs[i] = workload.nextDoc(random);
+                        seqs[i] = seq++;
+                        repeated[i] = !seen.add(docs[i]);
+                        request.add(update(writer, docs[i], seqs[i], random));
+                    }
+                    BulkPartialUpdateResponse response = client.execute(BulkPartialUpdateAction.INSTANCE, request).actionGet();
+                    if (measured) {
+                        recorder.latency(System.nanoTime() - start);
+                    }
+                    for (BulkPartialUpdateItemResponse item : response.getItems()) {
+                        if (item.isFailed()) {
+                            if (measured) {
+                                recorder.failure(item.getStatus() == RestStatus.CONFLICT, repeated[item.getItemId()]);
+                            }
+                        } else {
+                            acked(writer, docs[item.getItemId()], seqs[item.getItemId()], measured, recorder);
+                        }
+                    }
+                } else {
+                    int doc = workload.nextDoc(random);
+                    long current = seq++;
+                    client.execute(PartialUpdateAction.INSTANCE, update(writer, doc, current, random)).actionGet();
+                    if (measured) {
+                        recorder.latency(System.nanoTime() - start);
+                    }
+                    acked(writer, doc, current, measured, recorder);
+                }
+            } catch (Throwable e) {
+                if (measured) {
+                    recorder.latency(System.nanoTime() - start);
+                    recorder.failure(ExceptionsHelper.unwrapCause(e) instanceof VersionConflictEngineException);
+                }
+            }
+        }
+    }
+
+    private PartialUpdateRequest update(int writer, int doc, long seq, Random random) throws Exception {
+        PartialUpdateRequest request = new PartialUpdateRequest(Workload.INDEX, Workload.TYPE, Integer.toString(doc));
+        request.arrayMerge(workload.arrayMerge());
+        request.retryOnConflict(workload.retryOnConflict);
+        request.doc(workload.patch(writer, seq, random));
+        return request;
+    }
+
+    private void acked(int writer, int doc, long seq, boolean measured, Recorder recorder) {
+        // each writer only touches its own row, and the row is read once all writers stopped
+        acked[writer][doc] = seq;
+        increments.incrementAndGet();
+        if (measured) {
+            recorder.success();
+        }
+    }
+
+    /**
+     * Counts acknowledged updates that are not in the documents: a writer marker older than the last
+     * acknowledged one, and with operators, increments missing from the counters.
+     */
+    private long verify() {
+        long lost = 0;
+        long counters = 0;
+        for (int from = 0; from < workload.docs; from += 1000) {
+            MultiGetRequestBuilder multiGet = client.prepareMultiGet().setRealtime(true);
+            for (int doc = from; doc < Math.min(workload.docs, from + 1000); doc++) {
+                multiGet.add(Workload.INDEX, Workload.TYPE, Integer.toString(doc));
+            }
+            MultiGetResponse response = multiGet.execute().actionGet();
+            for (MultiGetItemResponse item : response.getResponses()) {
+                int doc = Integer.parseInt(item.getId());
+                Map<String, Object> source = item.getResponse().getSourceAsMap();
+                for (int writer = 0; writer < workload.threads; writer++) {
+                    long expected = acked[writer][doc];
+                    if (expected >= 0 && !contains(source.get("w_" + writer), expected)) {
+                        lost++;
+                    }
+                }
+                Object counter = source.get("counter");
+                if (counter instanceof Number) {
+                    counters += ((Number) counter).longValue();
+                }
+            }
+        }
+        if ("operators".equals(workload.mode)) {
+            long missing = increments.get() - counters;
+            System.out.println("counters: acknowledged increments [" + increments.get() + "], stored [" + counters + "]");
+            lost += Math.max(0, missing);
+        }
+        return lost;
+    }
+
+    /**
+     * Whether the stored marker is the acknowledged one or a later one of the same writer: an update that
+     * timed out or failed on the client may still have been applied. <tt>union</tt> turns markers into arrays.
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean contains(Object marker, long expected) {
+        if (marker instanceof List) {
+            for (Object value : (List<Object>) marker) {
+                if (value instanceof Number && ((Number) value).longValue() >= expected) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return marker instanceof Number && ((Number) marker).longValue() >= expected;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
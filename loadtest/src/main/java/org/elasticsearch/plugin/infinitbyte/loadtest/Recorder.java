@@ -0,0 +1,85 @@
+package org.elasticsearch.plugin.infinitbyte.loadtest;
+
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Latencies and outcomes of the requests of one writer. Latencies are kept exactly rather than in
+ * buckets, a measured run stays well within a few million requests per writer.
+ */
+class Recorder {
+
+    private long[] latencies = new long[1024];
+    private int count;
+    private long successes;
+    private long conflicts;
+    private long repeatedConflicts;
+    private long failures;
+
+    void latency(long nanos) {
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = nanos;
+    }
+
+    void success() {
+        successes++;
+    }
+
+    void failure(boolean conflict) {
+        failure(conflict, false);
+    }
+
+    /**
+     * A failed update, <tt>repeated</tt> if an earlier update of the same bulk request targeted the same
+     * document. A conflict there is caused by the request itself rather than by another writer.
+     */
+    void failure(boolean conflict, boolean repeated) {
+        if (conflict && repeated) {
+            repeatedConflicts++;
+        } else if (conflict) {
+            conflicts++;
+        } else {
+            failures++;
+        }
+    }
+
+    void add(Recorder other) {
+        for (int i = 0; i < other.count; i++) {
+            latency(other.latencies[i]);
+        }
+        successes += other.successes;
+        conflicts += other.conflicts;
+        repeatedConflicts += other.repeatedConflicts;
+        failures += other.failures;
+    }
+
+    /**
+     * Prints throughput over <tt>elapsedNanos</tt> and the latency percentiles of the requests, each
+     * carrying <tt>updatesPerRequest</tt> updates.
+     */
+    void report(PrintStream out, long elapsedNanos, int updatesPerRequest) {
+        double seconds = elapsedNanos / 1000000000.0;
+        Arrays.sort(latencies, 0, count);
+        out.println("requests: " + count + " (" + format(count / seconds) + "/s), " + updatesPerRequest + " updates each");
+        out.println("updates: acknowledged [" + successes + "] (" + format(successes / seconds) + "/s), conflicts [" + conflicts
+                + "], conflicts on ids repeated in the same bulk [" + repeatedConflicts + "], failures [" + failures + "]");
+        out.println("latency: p50 [" + percentile(0.5) + "], p90 [" + percentile(0.9) + "], p99 [" + percentile(0.99)
+                + "], p99.9 [" + percentile(0.999) + "], max [" + percentile(1.0) + "]");
+    }
+
+    private TimeValue percentile(double percentile) {
+        if (count == 0) {
+            return TimeValue.timeValueMillis(0);
+        }
+        int index = (int) Math.ceil(percentile * count) - 1;
+        return TimeValue.timeValueNanos(latencies[Math.max(0, Math.min(count - 1, index))]);
+    }
+
+    private static String format(double value) {
+        return String.format("%.1f", value);
+    }
+}
@@ -0,0 +1,155 @@
+package org.elasticsearch.plugin.infinitbyte.loadtest;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * What the load test does, from <tt>key=value</tt> arguments:
+ * <ul>
+ * <li><tt>threads</tt>: concurrent writers, default 8</li>
+ * <li><tt>duration</tt>, <tt>warmup</tt>: measured time and time before it, default 30s and 10s</li>
+ * <li><tt>docs</tt>: documents updated, default 10000</li>
+ * <li><tt>doc_kb</tt>: approximate size of a document, default 1</li>
+ * <li><tt>ids</tt>: <tt>uniform</tt> or <tt>hot</tt>, where <tt>hot_ops</tt> of the updates (default 0.9) go to
+ * <tt>hot_docs</tt> of the documents (default 0.01)</li>
+ * <li><tt>mode</tt>: <tt>replace</tt>, <tt>append</tt>, <tt>remove</tt>, <tt>add_to_set</tt>, <tt>union</tt> or
+ * <tt>operators</tt>, default replace</li>
+ * <li><tt>bulk</tt>: updates per bulk request, default 0 for single updates</li>
+ * <li><tt>retry_on_conflict</tt>: default 3, <tt>shards</tt>: default 1, <tt>seed</tt>: default 0</li>
+ * </ul>
+ * Every update also sets a <tt>w_{thread}</tt> field to a sequence number of its writer, so an
+ * acknowledged update that is overwritten by a concurrent one shows up as lost when the documents are
+ * checked at the end.
+ */
+public class Workload {
+
+    static final String INDEX = "loadtest";
+    static final String TYPE = "doc";
+    static final int TAGS = 10;
+
+    final int threads;
+    final TimeValue duration;
+    final TimeValue warmup;
+    final int docs;
+    final int docKb;
+    final boolean hot;
+    final double hotOps;
+    final double hotDocs;
+    final String mode;
+    final int bulk;
+    final int retryOnConflict;
+    final int shards;
+    final long seed;
+
+    Workload(Map<String, String> args) {
+        Map<String, String> remaining = Maps.newHashMap(args);
+        threads = Integer.parseInt(take(remaining, "threads", "8"));
+        duration = TimeValue.parseTimeValue(take(remaining, "duration", "30s"), null);
+        warmup = TimeValue.parseTimeValue(take(remaining, "warmup", "10s"), null);
+        docs = Integer.parseInt(take(remaining, "docs", "10000"));
+        docKb = Integer.parseInt(take(remaining, "doc_kb", "1"));
+        String ids = take(remaining, "ids", "uniform");
+        if (!"uniform".equals(ids) && !"hot".equals(ids)) {
+            throw new ElasticsearchIllegalArgumentException("ids must be uniform or hot, got [" + ids + "]");
+        }
+        hot = "hot".equals(ids);
+        hotOps = Double.parseDouble(take(remaining, "hot_ops", "0.9"));
+        hotDocs = Double.parseDouble(take(remaining, "hot_docs", "0.01"));
+        mode = take(remaining, "mode", "replace");
+        if (!"replace".equals(mode) && !"append".equals(mode) && !"remove".equals(mode) && !"add_to_set".equals(mode)
+                && !"union".equals(mode) && !"operators".equals(mode)) {
+            throw new ElasticsearchIllegalArgumentException("unknown mode [" + mode + "]");
+        }
+        bulk = Integer.parseInt(take(remaining, "bulk", "0"));
+        retryOnConflict = Integer.parseInt(take(remaining, "retry_on_conflict", "3"));
+        shards = Integer.parseInt(take(remaining, "shards", "1"));
+        seed = Long.parseLong(take(remaining, "seed", "0"));
+        if (!remaining.isEmpty()) {
+            throw new ElasticsearchIllegalArgumentException("unknown arguments " + remaining.keySet());
+        }
+    }
+
+    private static String take(Map<String, String> args, String key, String defaultValue) {
+        String value = args.remove(key);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * The array merge mode sent with the updates, operator patches bring their own.
+     */
+    String arrayMerge() {
+        return "operators".equals(mode) ? "replace" : mode;
+    }
+
+    int nextDoc(Random random) {
+        if (hot) {
+            int hotCount = Math.max(1, (int) (docs * hotDocs));
+            if (random.nextDouble() < hotOps) {
+                return random.nextInt(hotCount);
+            }
+            return hotCount + random.nextInt(Math.max(1, docs - hotCount));
+        }
+        return random.nextInt(docs);
+    }
+
+    BytesReference document(int doc, Random random) throws IOException {
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        builder.field("counter", 0);
+        builder.startArray("tags");
+        for (int i = 0; i < TAGS; i++) {
+            builder.value("tag_" + i);
+        }
+        builder.endArray();
+        int field = 0;
+        while (builder.bytes().length() < docKb * 1024) {
+            builder.field("f" + field++, text(random, 64));
+        }
+        return builder.endObject().bytes();
+    }
+
+    /**
+     * The pending changes of one update by <tt>writer</tt>, tagged with its sequence number.
+     */
+    BytesReference patch(int writer, long seq, Random random) throws IOException {
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        String marker = "w_" + writer;
+        if ("operators".equals(mode)) {
+            builder.startObject("$set").field(marker, seq).endObject();
+            builder.startObject("$inc").field("counter", 1).endObject();
+            builder.startObject("$push").startObject("events").array("$each", seq).field("$cap", 50).endObject().endObject();
+        } else {
+            builder.field(marker, seq);
+            if ("replace".equals(mode)) {
+                builder.field("f0", text(random, 16));
+            } else if ("remove".equals(mode)) {
+                builder.array("tags", "tag_" + random.nextInt(TAGS));
+            } else {
+                builder.array("tags", "tag_" + random.nextInt(TAGS * 10));
+            }
+        }
+        return builder.endObject().bytes();
+    }
+
+    private static String text(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public String toString() {
+        return "threads [" + threads + "], duration [" + duration + "], warmup [" + warmup + "], docs [" + docs + "], doc_kb [" + docKb
+                + "], ids [" + (hot ? "hot " + hotOps + " of ops on " + hotDocs + " of docs" : "uniform") + "], mode [" + mode
+                + "], bulk [" + bulk + "], retry_on_conflict [" + retryOnConflict + "], shards [" + shards + "], seed [" + seed + "]";
+    }
+}
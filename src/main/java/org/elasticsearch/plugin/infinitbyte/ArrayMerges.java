@@ -0,0 +1,93 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.collect.Sets;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Array set operations used by the array merge modes. Each operation hashes the existing
+ * array once and keeps its original order, so it costs O(n + m) instead of a scan of the
+ * existing array for every pending value.
+ */
+final class ArrayMerges {
+
+    private ArrayMerges() {
+    }
+
+    /**
+     * The pending value as a list of values, an array is taken element by element and any other
+     * value is a single element.
+     */
+    @SuppressWarnings("unchecked")
+    static List<Object> values(Object value) {
+        if (value instanceof List) {
+            return (List<Object>) value;
+        }
+        return Collections.singletonList(value);
+    }
+
+    /**
+     * Appends the pending value, then keeps only the last <tt>cap</tt> elements when <tt>cap</tt> is
+     * positive. A single value is always appended; the values of an array are appended unless they
+     * are present already. Duplicates already in the array are left alone, dropping them is what
+     * <tt>add_to_set</tt> is for.
+     */
+    static List<Object> append(List<Object> existing, Object value, int cap) {
+        if (value instanceof List) {
+            Set<Object> present = Sets.newHashSet(existing);
+            for (Object element : (List<?>) value) {
+                if (present.add(element)) {
+                    existing.add(element);
+                }
+            }
+        } else {
+            existing.add(value);
+        }
+        if (cap > 0 && existing.size() > cap) {
+            return Lists.newArrayList(existing.subList(existing.size() - cap, existing.size()));
+        }
+        return existing;
+    }
+
+    /**
+     * Turns the array into a set: duplicates are dropped, keeping their first position, and
+     * values not present yet are added at the end.
+     */
+    static List<Object> addToSet(List<Object> existing, List<Object> values) {
+        Set<Object> present = Sets.newLinkedHashSet();
+        present.addAll(existing);
+        present.addAll(values);
+        return Lists.newArrayList(present);
+    }
+
+    /**
+     * Removes the first occurrence of each value, once per time it is given.
+     */
+    static List<Object> remove(List<Object> existing, List<Object> values) {
+        if (values.isEmpty()) {
+            return existing;
+        }
+        Map<Object, Integer> pending = Maps.newHashMapWithExpectedSize(values.size());
+        for (Object value : values) {
+            Integer count = pending.get(value);
+            pending.put(value, count == null ? 1 : count + 1);
+        }
+        List<Object> result = Lists.newArrayListWithCapacity(existing.size());
+        for (Object value : existing) {
+            Integer count = pending.get(value);
+            if (count == null) {
+                result.add(value);
+            } else if (count == 1) {
+                pending.remove(value);
+            } else {
+                pending.put(value, count - 1);
+            }
+        }
+        return result;
+    }
+}
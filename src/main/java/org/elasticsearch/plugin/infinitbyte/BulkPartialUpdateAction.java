@@ -0,0 +1,27 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.Client;
+
+/**
+ * Applies many partial updates with one multi get and one bulk request.
+ */
+public class BulkPartialUpdateAction extends Action<BulkPartialUpdateRequest, BulkPartialUpdateResponse, BulkPartialUpdateRequestBuilder> {
+
+    public static final BulkPartialUpdateAction INSTANCE = new BulkPartialUpdateAction();
+    public static final String NAME = "bulk_partial_update";
+
+    private BulkPartialUpdateAction() {
+        super(NAME);
+    }
+
+    @Override
+    public BulkPartialUpdateResponse newResponse() {
+        return new BulkPartialUpdateResponse();
+    }
+
+    @Override
+    public BulkPartialUpdateRequestBuilder newRequestBuilder(Client client) {
+        return new BulkPartialUpdateRequestBuilder(client);
+    }
+}
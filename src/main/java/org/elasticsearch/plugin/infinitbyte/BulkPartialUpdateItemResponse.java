@@ -0,0 +1,124 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.IOException;
+
+/**
+ * The outcome of a single update within a {@link BulkPartialUpdateRequest}, either the new
+ * version of the document or the reason it was not updated.
+ */
+public class BulkPartialUpdateItemResponse implements Streamable {
+
+    private int itemId;
+    private String index;
+    private String type;
+    private String id;
+    private long version;
+    private RestStatus status;
+    private String failureMessage;
+    private boolean noop;
+
+    BulkPartialUpdateItemResponse() {
+    }
+
+    public BulkPartialUpdateItemResponse(int itemId, String index, String type, String id, long version, RestStatus status, String failureMessage) {
+        this.itemId = itemId;
+        this.index = index;
+        this.type = type;
+        this.id = id;
+        this.version = version;
+        this.status = status;
+        this.failureMessage = failureMessage;
+    }
+
+    public static BulkPartialUpdateItemResponse success(int itemId, String index, String type, String id, long version) {
+        return new BulkPartialUpdateItemResponse(itemId, index, type, id, version, RestStatus.OK, null);
+    }
+
+    /**
+     * An update that changed nothing, the document was not written and kept <tt>version</tt>.
+     */
+    public static BulkPartialUpdateItemResponse noop(int itemId, PartialUpdateRequest request, long version) {
+        BulkPartialUpdateItemResponse response = new BulkPartialUpdateItemResponse(itemId, request.index(), request.type(), request.id(),
+                version, RestStatus.OK, null);
+        response.noop = true;
+        return response;
+    }
+
+    public static BulkPartialUpdateItemResponse failure(int itemId, PartialUpdateRequest request, RestStatus status, String failureMessage) {
+        return new BulkPartialUpdateItemResponse(itemId, request.index(), request.type(), request.id(), -1, status, failureMessage);
+    }
+
+    /**
+     * The position of the update in the request.
+     */
+    public int getItemId() {
+        return itemId;
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public RestStatus getStatus() {
+        return status;
+    }
+
+    public boolean isFailed() {
+        return failureMessage != null;
+    }
+
+    public String getFailureMessage() {
+        return failureMessage;
+    }
+
+    public boolean isNoop() {
+        return noop;
+    }
+
+    public static BulkPartialUpdateItemResponse readItemResponse(StreamInput in) throws IOException {
+        BulkPartialUpdateItemResponse response = new BulkPartialUpdateItemResponse();
+        response.readFrom(in);
+        return response;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        itemId = in.readVInt();
+        index = in.readSharedString();
+        type = in.readSharedString();
+        id = in.readString();
+        version = in.readLong();
+        status = RestStatus.readFrom(in);
+        failureMessage = in.readOptionalString();
+        noop = in.readBoolean();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVInt(itemId);
+        out.writeSharedString(index);
+        out.writeSharedString(type);
+        out.writeString(id);
+        out.writeLong(version);
+        RestStatus.writeTo(out, status);
+        out.writeOptionalString(failureMessage);
+        out.writeBoolean(noop);
+    }
+}
@@ -0,0 +1,188 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.VersionType;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+/**
+ * A batch of partial updates, read with a single multi get and written with a single bulk request.
+ */
+public class BulkPartialUpdateRequest extends ActionRequest<BulkPartialUpdateRequest> {
+
+    private final List<PartialUpdateRequest> requests = Lists.newArrayList();
+
+    private boolean refresh = false;
+
+    public BulkPartialUpdateRequest add(PartialUpdateRequest request) {
+        requests.add(request);
+        return this;
+    }
+
+    public List<PartialUpdateRequest> requests() {
+        return requests;
+    }
+
+    public int numberOfActions() {
+        return requests.size();
+    }
+
+    /**
+     * Adds the updates of a new line delimited body. Each line is one update:
+     * <pre>
+     * {"index":"index","type":"type1","id":"1","array_merge":"append","doc":{"tag":["movie"]}}
+     * </pre>
+     * <tt>index</tt> and <tt>type</tt> may be omitted when defaults are given.
+     */
+    public BulkPartialUpdateRequest add(BytesReference data, @Nullable String defaultIndex, @Nullable String defaultType) throws Exception {
+        XContent xContent = XContentFactory.xContent(data);
+        int from = 0;
+        int length = data.length();
+        byte marker = xContent.streamSeparator();
+        int line = 0;
+        while (from < length) {
+            int nextMarker = findNextMarker(marker, from, data, length);
+            line++;
+            if (nextMarker > from) {
+                XContentParser parser = xContent.createParser(data.slice(from, nextMarker - from));
+                try {
+                    PartialUpdateRequest request = parseItem(parser, line, defaultIndex, defaultType);
+                    if (request != null) {
+                        requests.add(request);
+                    }
+                } finally {
+                    parser.close();
+                }
+            }
+            from = nextMarker + 1;
+        }
+        return this;
+    }
+
+    private PartialUpdateRequest parseItem(XContentParser parser, int line, String defaultIndex, String defaultType) throws IOException {
+        XContentParser.Token token = parser.nextToken();
+        if (token == null) {
+            return null;
+        }
+        if (token != XContentParser.Token.START_OBJECT) {
+            throw new ElasticsearchParseException("line [" + line + "]: expected an object");
+        }
+        PartialUpdateRequest request = new PartialUpdateRequest(defaultIndex, defaultType, null);
+        request.listenerThreaded(false);
+        String currentFieldName = null;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token == XContentParser.Token.START_OBJECT && "doc".equals(currentFieldName)) {
+                XContentBuilder docBuilder = XContentFactory.contentBuilder(parser.contentType());
+                docBuilder.copyCurrentStructure(parser);
+                request.doc(docBuilder.bytes());
+            } else if (token.isValue()) {
+                if ("index".equals(currentFieldName) || "_index".equals(currentFieldName)) {
+                    request.index(parser.text());
+                } else if ("type".equals(currentFieldName) || "_type".equals(currentFieldName)) {
+                    request.type(parser.text());
+                } else if ("id".equals(currentFieldName) || "_id".equals(currentFieldName)) {
+                    request.id(parser.text());
+                } else if ("routing".equals(currentFieldName) || "_routing".equals(currentFieldName)) {
+                    request.routing(parser.text());
+                } else if ("parent".equals(currentFieldName) || "_parent".equals(currentFieldName)) {
+                    request.parent(parser.text());
+                } else if ("array_merge".equals(currentFieldName)) {
+                    request.arrayMerge(parser.text());
+                } else if ("array_cap".equals(currentFieldName)) {
+                    request.arrayCap(parser.intValue());
+                } else if ("dotted_paths".equals(currentFieldName)) {
+                    request.dottedPaths(parser.booleanValue());
+                } else if ("touch_timestamp".equals(currentFieldName)) {
+                    request.touchTimestamp(parser.booleanValue());
+                } else if ("retry_on_conflict".equals(currentFieldName) || "_retry_on_conflict".equals(currentFieldName)) {
+                    request.retryOnConflict(parser.intValue());
+                } else if ("version".equals(currentFieldName) || "_version".equals(currentFieldName)) {
+                    request.version(parser.longValue());
+                } else if ("version_type".equals(currentFieldName) || "_version_type".equals(currentFieldName)) {
+                    request.versionType(VersionType.fromString(parser.text()));
+                } else {
+                    throw new ElasticsearchParseException("line [" + line + "]: unknown field [" + currentFieldName + "]");
+                }
+            } else {
+                throw new ElasticsearchParseException("line [" + line + "]: unexpected token [" + token + "] for [" + currentFieldName + "]");
+            }
+        }
+        return request;
+    }
+
+    private int findNextMarker(byte marker, int from, BytesReference data, int length) {
+        for (int i = from; i < length; i++) {
+            if (data.get(i) == marker) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    public boolean refresh() {
+        return refresh;
+    }
+
+    /**
+     * Refresh the touched indices once the bulk write is done.
+     */
+    public BulkPartialUpdateRequest refresh(boolean refresh) {
+        this.refresh = refresh;
+        return this;
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        ActionRequestValidationException validationException = null;
+        if (requests.isEmpty()) {
+            validationException = addValidationError("no updates added", validationException);
+        }
+        for (int i = 0; i < requests.size(); i++) {
+            ActionRequestValidationException ex = requests.get(i).validate();
+            if (ex != null) {
+                for (String error : ex.validationErrors()) {
+                    validationException = addValidationError("item [" + i + "]: " + error, validationException);
+                }
+            }
+        }
+        return validationException;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        int size = in.readVInt();
+        for (int i = 0; i < size; i++) {
+            PartialUpdateRequest request = new PartialUpdateRequest();
+            request.readFrom(in);
+            requests.add(request);
+        }
+        refresh = in.readBoolean();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(requests.size());
+        for (PartialUpdateRequest request : requests) {
+            request.writeTo(out);
+        }
+        out.writeBoolean(refresh);
+    }
+}
@@ -0,0 +1,40 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.internal.InternalClient;
+
+/**
+ * Builder for {@link BulkPartialUpdateRequest}.
+ */
+public class BulkPartialUpdateRequestBuilder extends ActionRequestBuilder<BulkPartialUpdateRequest, BulkPartialUpdateResponse, BulkPartialUpdateRequestBuilder> {
+
+    public BulkPartialUpdateRequestBuilder(Client client) {
+        super((InternalClient) client, new BulkPartialUpdateRequest());
+    }
+
+    public BulkPartialUpdateRequestBuilder add(PartialUpdateRequest request) {
+        super.request.add(request);
+        return this;
+    }
+
+    public BulkPartialUpdateRequestBuilder add(PartialUpdateRequestBuilder request) {
+        super.request.add(request.request());
+        return this;
+    }
+
+    public BulkPartialUpdateRequestBuilder setRefresh(boolean refresh) {
+        request.refresh(refresh);
+        return this;
+    }
+
+    public int numberOfActions() {
+        return request.numberOfActions();
+    }
+
+    @Override
+    protected void doExecute(ActionListener<BulkPartialUpdateResponse> listener) {
+        ((Client) client).execute(BulkPartialUpdateAction.INSTANCE, request, listener);
+    }
+}
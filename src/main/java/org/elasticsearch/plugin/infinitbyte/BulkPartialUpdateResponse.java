@@ -0,0 +1,66 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.IOException;
+
+/**
+ * The per item results of a {@link BulkPartialUpdateRequest}, in request order.
+ */
+public class BulkPartialUpdateResponse extends ActionResponse {
+
+    private BulkPartialUpdateItemResponse[] responses;
+    private long tookInMillis;
+
+    BulkPartialUpdateResponse() {
+    }
+
+    public BulkPartialUpdateResponse(BulkPartialUpdateItemResponse[] responses, long tookInMillis) {
+        this.responses = responses;
+        this.tookInMillis = tookInMillis;
+    }
+
+    public BulkPartialUpdateItemResponse[] getItems() {
+        return responses;
+    }
+
+    public TimeValue getTook() {
+        return new TimeValue(tookInMillis);
+    }
+
+    public long getTookInMillis() {
+        return tookInMillis;
+    }
+
+    public boolean hasFailures() {
+        for (BulkPartialUpdateItemResponse response : responses) {
+            if (response.isFailed()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        responses = new BulkPartialUpdateItemResponse[in.readVInt()];
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = BulkPartialUpdateItemResponse.readItemResponse(in);
+        }
+        tookInMillis = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(responses.length);
+        for (BulkPartialUpdateItemResponse response : responses) {
+            response.writeTo(out);
+        }
+        out.writeVLong(tookInMillis);
+    }
+}
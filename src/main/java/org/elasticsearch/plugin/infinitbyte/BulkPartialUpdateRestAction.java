@@ -0,0 +1,114 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+import org.elasticsearch.rest.*;
+import org.elasticsearch.rest.action.support.RestXContentBuilder;
+
+import java.io.IOException;
+
+import static org.elasticsearch.rest.RestStatus.BAD_REQUEST;
+import static org.elasticsearch.rest.RestStatus.OK;
+
+/**
+ * New line delimited partial updates, one update per line:
+ * <pre>
+ * curl -XPOST localhost:9200/_bulk_partial_update --data-binary @updates.json
+ * </pre>
+ */
+public class BulkPartialUpdateRestAction extends BaseRestHandler {
+
+    @Inject
+    public BulkPartialUpdateRestAction(Settings settings, Client client,
+                                       RestController restController) {
+        super(settings, client);
+        restController.registerHandler(RestRequest.Method.POST, "/_bulk_partial_update", this);
+        restController.registerHandler(RestRequest.Method.PUT, "/_bulk_partial_update", this);
+        restController.registerHandler(RestRequest.Method.POST, "/{index}/_bulk_partial_update", this);
+        restController.registerHandler(RestRequest.Method.PUT, "/{index}/_bulk_partial_update", this);
+        restController.registerHandler(RestRequest.Method.POST, "/{index}/{type}/_bulk_partial_update", this);
+        restController.registerHandler(RestRequest.Method.PUT, "/{index}/{type}/_bulk_partial_update", this);
+    }
+
+    public void handleRequest(final RestRequest request,
+                              final RestChannel channel) {
+        BulkPartialUpdateRequest bulkRequest = new BulkPartialUpdateRequest();
+        bulkRequest.listenerThreaded(false);
+        bulkRequest.refresh(request.paramAsBoolean("refresh", bulkRequest.refresh()));
+        try {
+            bulkRequest.add(request.content(), request.param("index"), request.param("type"));
+        } catch (Exception e) {
+            try {
+                XContentBuilder builder = RestXContentBuilder.restContentBuilder(request);
+                channel.sendResponse(new XContentRestResponse(request, BAD_REQUEST,
+                        builder.startObject().field("error", e.getMessage()).endObject()));
+            } catch (IOException e1) {
+                logger.error("failed to send failure response", e1);
+            }
+            return;
+        }
+
+        client.execute(BulkPartialUpdateAction.INSTANCE, bulkRequest,
+                new ActionListener<BulkPartialUpdateResponse>() {
+                    public void onResponse(BulkPartialUpdateResponse response) {
+                        try {
+                            XContentBuilder builder = RestXContentBuilder
+                                    .restContentBuilder(request);
+                            builder.startObject();
+                            builder.field(Fields.TOOK, response.getTookInMillis());
+                            builder.field(Fields.ERRORS, response.hasFailures());
+                            builder.startArray(Fields.ITEMS);
+                            for (BulkPartialUpdateItemResponse item : response.getItems()) {
+                                builder.startObject();
+                                builder.startObject(Fields.PARTIAL_UPDATE);
+                                builder.field(Fields._INDEX, item.getIndex());
+                                builder.field(Fields._TYPE, item.getType());
+                                builder.field(Fields._ID, item.getId());
+                                builder.field(Fields.STATUS, item.getStatus().getStatus());
+                                if (item.isFailed()) {
+                                    builder.field(Fields.ERROR, item.getFailureMessage());
+                                } else {
+                                    builder.field(Fields._VERSION, item.getVersion());
+                                    builder.field(Fields.RESULT, item.isNoop() ? "noop" : "updated");
+                                }
+                                builder.endObject();
+                                builder.endObject();
+                            }
+                            builder.endArray();
+                            builder.endObject();
+                            channel.sendResponse(new XContentRestResponse(
+                                    request, OK, builder));
+                        } catch (Exception e) {
+                            onFailure(e);
+                        }
+                    }
+
+                    public void onFailure(Throwable e) {
+                        try {
+                            channel.sendResponse(new XContentThrowableRestResponse(
+                                    request, PartialUpdateRestAction.failureStatus(e), e));
+                        } catch (IOException e1) {
+                            logger.error("failed to send failure response", e1);
+                        }
+                    }
+                });
+    }
+
+    static final class Fields {
+        static final XContentBuilderString TOOK = new XContentBuilderString("took");
+        static final XContentBuilderString ERRORS = new XContentBuilderString("errors");
+        static final XContentBuilderString ITEMS = new XContentBuilderString("items");
+        static final XContentBuilderString PARTIAL_UPDATE = new XContentBuilderString("partial_update");
+        static final XContentBuilderString _INDEX = new XContentBuilderString("_index");
+        static final XContentBuilderString _TYPE = new XContentBuilderString("_type");
+        static final XContentBuilderString _ID = new XContentBuilderString("_id");
+        static final XContentBuilderString _VERSION = new XContentBuilderString("_version");
+        static final XContentBuilderString STATUS = new XContentBuilderString("status");
+        static final XContentBuilderString ERROR = new XContentBuilderString("error");
+        static final XContentBuilderString RESULT = new XContentBuilderString("result");
+    }
+}
@@ -0,0 +1,122 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free latency histogram with power of two buckets in microseconds. Percentiles are
+ * reported as the upper bound of their bucket, so they are accurate within a factor of two,
+ * which is enough to see where time goes and to spot regressions.
+ */
+public class LatencyHistogram implements ToXContent {
+
+    static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void recordNanos(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        buckets.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long current;
+        while (micros > (current = max.get())) {
+            if (max.compareAndSet(current, micros)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Bucket <tt>i</tt> holds values in <tt>[2^(i-1), 2^i)</tt>, bucket 0 holds 0.
+     */
+    static int bucket(long micros) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public long sumMicros() {
+        return sum.get();
+    }
+
+    public long maxMicros() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     */
+    public long percentileMicros(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(i == 0 ? 0 : 1L << i, maxMicros());
+            }
+        }
+        return maxMicros();
+    }
+
+    /**
+     * Adds the values recorded by <tt>other</tt> to this histogram.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.addAndGet(i, other.buckets.get(i));
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+        long otherMax = other.max.get();
+        long current;
+        while (otherMax > (current = max.get())) {
+            if (max.compareAndSet(current, otherMax)) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        long count = count();
+        builder.field(Fields.COUNT, count);
+        builder.field(Fields.TOTAL_TIME_IN_MICROS, sumMicros());
+        builder.field(Fields.AVG_IN_MICROS, count == 0 ? 0 : sumMicros() / count);
+        builder.field(Fields.P50_IN_MICROS, percentileMicros(50));
+        builder.field(Fields.P90_IN_MICROS, percentileMicros(90));
+        builder.field(Fields.P99_IN_MICROS, percentileMicros(99));
+        builder.field(Fields.MAX_IN_MICROS, maxMicros());
+        return builder;
+    }
+
+    static final class Fields {
+        static final XContentBuilderString COUNT = new XContentBuilderString("count");
+        static final XContentBuilderString TOTAL_TIME_IN_MICROS = new XContentBuilderString("total_time_in_micros");
+        static final XContentBuilderString AVG_IN_MICROS = new XContentBuilderString("avg_in_micros");
+        static final XContentBuilderString P50_IN_MICROS = new XContentBuilderString("p50_in_micros");
+        static final XContentBuilderString P90_IN_MICROS = new XContentBuilderString("p90_in_micros");
+        static final XContentBuilderString P99_IN_MICROS = new XContentBuilderString("p99_in_micros");
+        static final XContentBuilderString MAX_IN_MICROS = new XContentBuilderString("max_in_micros");
+    }
+}
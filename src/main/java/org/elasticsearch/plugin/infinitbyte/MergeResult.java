@@ -0,0 +1,29 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * The merged source, and whether the merge changed anything besides
+ * {@link PartialUpdateHelper#LAST_PARTIAL_UPDATED}.
+ */
+public class MergeResult {
+
+    private final XContentBuilder source;
+    private final boolean changed;
+
+    public MergeResult(XContentBuilder source, boolean changed) {
+        this.source = source;
+        this.changed = changed;
+    }
+
+    /**
+     * A builder holding the merged document, in the content type of the stored source.
+     */
+    public XContentBuilder source() {
+        return source;
+    }
+
+    public boolean changed() {
+        return changed;
+    }
+}
@@ -0,0 +1,27 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.Client;
+
+/**
+ * Partial update action, executed on the primary shard of the target document.
+ */
+public class PartialUpdateAction extends Action<PartialUpdateRequest, PartialUpdateResponse, PartialUpdateRequestBuilder> {
+
+    public static final PartialUpdateAction INSTANCE = new PartialUpdateAction();
+    public static final String NAME = "partial_update";
+
+    private PartialUpdateAction() {
+        super(NAME);
+    }
+
+    @Override
+    public PartialUpdateResponse newResponse() {
+        return new PartialUpdateResponse();
+    }
+
+    @Override
+    public PartialUpdateRequestBuilder newRequestBuilder(Client client) {
+        return new PartialUpdateRequestBuilder(client);
+    }
+}
@@ -0,0 +1,423 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies the same pending changes to every document matching a query. Matches are read in
+ * batches with a scan/scroll search, merged on this node and written with one bulk request per
+ * batch, each document against the version the scroll returned. The pending changes are parsed
+ * once for the whole job.
+ * <p/>
+ * A scan returns up to its size from every shard, so each shard is asked for its share of
+ * <tt>batch_size</tt>, and a page that still holds more is split into batches of <tt>batch_size</tt>.
+ * At most <tt>concurrency</tt> bulk requests are in flight at a time; the scroll waits for a
+ * free slot before submitting the next batch, and pauses for <tt>throttle</tt> between batches.
+ * <p/>
+ * A running job can be looked at and cancelled through {@link PartialUpdateByQueryJobs}, a cancelled
+ * job stops reading after the batch it is on and waits for the batches in flight.
+ */
+class PartialUpdateByQueryJob implements Runnable {
+
+    static final int MAX_REPORTED_FAILURES = 100;
+    static final long PROGRESS_LOG_INTERVAL = TimeValue.timeValueSeconds(10).millis();
+
+    enum State {
+        RUNNING, COMPLETED, CANCELLED, FAILED
+    }
+
+    private final Client client;
+    private final PartialUpdateHelper partialUpdateHelper;
+    private final PartialUpdateStats partialUpdateStats;
+    private final ESLogger logger;
+
+    private final String[] indices;
+    private final String[] types;
+    private final BytesReference query;
+    private final PartialUpdateRequest template;
+    private final Map<String, Object> pending;
+    /** what the stats of the job are recorded under */
+    private final String mode;
+    private final int batchSize;
+    private final int shards;
+    private final int concurrency;
+    private final TimeValue throttle;
+    private final TimeValue scroll;
+    private final ActionListener<PartialUpdateByQueryJob> listener;
+
+    private final Semaphore inFlight;
+    private final Result result = new Result();
+
+    private long id;
+    private volatile State state = State.RUNNING;
+    private volatile boolean cancelled;
+    private volatile String error;
+    private long lastProgressLog;
+
+    PartialUpdateByQueryJob(Client client, PartialUpdateHelper partialUpdateHelper, PartialUpdateStats partialUpdateStats, ESLogger logger,
+                            String[] indices, String[] types, BytesReference query, PartialUpdateRequest template, Map<String, Object> pending,
+                            int batchSize, int shards, int concurrency, TimeValue throttle, TimeValue scroll, ActionListener<PartialUpdateByQueryJob> listener) {
+        this.client = client;
+        this.partialUpdateHelper = partialUpdateHelper;
+        this.partialUpdateStats = partialUpdateStats;
+        this.logger = logger;
+        this.indices = indices;
+        this.types = types;
+        this.query = query;
+        this.template = template;
+        this.pending = pending;
+        this.mode = PartialUpdateStats.mode(template, pending);
+        this.batchSize = batchSize;
+        this.shards = Math.max(1, shards);
+        this.concurrency = concurrency;
+        this.throttle = throttle;
+        this.scroll = scroll;
+        this.listener = listener;
+        this.inFlight = new Semaphore(concurrency);
+        this.result.startTime = System.currentTimeMillis();
+    }
+
+    long id() {
+        return id;
+    }
+
+    void id(long id) {
+        this.id = id;
+    }
+
+    State state() {
+        return state;
+    }
+
+    /**
+     * Stops the job after the batch it is on, returns <tt>false</tt> if it is not running anymore.
+     */
+    boolean cancel() {
+        if (state != State.RUNNING) {
+            return false;
+        }
+        cancelled = true;
+        return true;
+    }
+
+    @Override
+    public void run() {
+        lastProgressLog = System.currentTimeMillis();
+        logger.info("partial update by query job [{}] started on {}{}", id, Arrays.toString(indices),
+                types.length == 0 ? "" : Arrays.toString(types));
+        String scrollId = null;
+        try {
+            SearchResponse searchResponse = client.prepareSearch(indices)
+                    .setTypes(types)
+                    .setSearchType(SearchType.SCAN)
+                    .setScroll(scroll)
+                    // the size of a scan is per shard
+                    .setSize(Math.max(1, batchSize / shards))
+                    .setVersion(true)
+                    .addFields("_source", "_routing", "_parent")
+                    .setQuery(query)
+                    .execute().actionGet();
+            scrollId = searchResponse.getScrollId();
+            result.total = searchResponse.getHits().totalHits();
+
+            int batch = 0;
+            pages:
+            while (!cancelled) {
+                searchResponse = client.prepareSearchScroll(scrollId).setScroll(scroll).execute().actionGet();
+                scrollId = searchResponse.getScrollId();
+                SearchHit[] hits = searchResponse.getHits().hits();
+                if (hits.length == 0) {
+                    break;
+                }
+                for (int from = 0; from < hits.length; from += batchSize) {
+                    if (cancelled) {
+                        break pages;
+                    }
+                    inFlight.acquire();
+                    try {
+                        submit(++batch, from == 0 && hits.length <= batchSize ? hits
+                                : Arrays.copyOfRange(hits, from, Math.min(hits.length, from + batchSize)));
+                    } catch (Throwable e) {
+                        inFlight.release();
+                        throw e;
+                    }
+                    if (throttle.millis() > 0) {
+                        Thread.sleep(throttle.millis());
+                    }
+                }
+            }
+
+            // wait for the last bulk requests to come back
+            inFlight.acquire(concurrency);
+            inFlight.release(concurrency);
+            result.tookInMillis = System.currentTimeMillis() - result.startTime;
+            state = cancelled ? State.CANCELLED : State.COMPLETED;
+            logger.info("partial update by query job [{}] {} in [{}]: total [{}], processed [{}], updated [{}], noops [{}], conflicts [{}], failed [{}]",
+                    id, state.name().toLowerCase(Locale.ROOT), TimeValue.timeValueMillis(result.tookInMillis), result.total,
+                    result.processed.get(), result.updated.get(), result.noops.get(), result.versionConflicts.get(), result.failed.get());
+            listener.onResponse(this);
+        } catch (Throwable e) {
+            result.tookInMillis = System.currentTimeMillis() - result.startTime;
+            error = ExceptionsHelper.detailedMessage(e);
+            state = State.FAILED;
+            logger.warn("partial update by query job [{}] failed after processing [{}] documents", e, id, result.processed.get());
+            listener.onFailure(e);
+        } finally {
+            if (scrollId != null) {
+                try {
+                    client.prepareClearScroll().addScrollId(scrollId).execute();
+                } catch (Throwable e) {
+                    logger.debug("failed to clear scroll [{}]", e, scrollId);
+                }
+            }
+        }
+    }
+
+    private void submit(final int batch, SearchHit[] hits) {
+        final long batchStart = System.currentTimeMillis();
+        final BatchResult batchResult = new BatchResult(batch, hits.length);
+        BulkRequest bulkRequest = new BulkRequest();
+        bulkRequest.listenerThreaded(false);
+        for (SearchHit hit : hits) {
+            PartialUpdateRequest request = new PartialUpdateRequest(hit.getIndex(), hit.getType(), hit.getId())
+                    .routing(fieldValue(hit, "_routing"))
+                    .parent(fieldValue(hit, "_parent"))
+                    .arrayMerge(template.arrayMerge())
+                    .arrayCap(template.arrayCap())
+                    .dottedPaths(template.dottedPaths())
+                    .touchTimestamp(template.touchTimestamp())
+                    .doc(template.doc())
+                    .replicationType(template.replicationType())
+                    .consistencyLevel(template.consistencyLevel());
+            request.timeout(template.timeout());
+            try {
+                PartialUpdateHelper.Result prepared = partialUpdateHelper.prepare(request, pending, hit.getVersion(), hit.sourceRef());
+                if (prepared.noop()) {
+                    batchResult.noops++;
+                } else {
+                    bulkRequest.add(prepared.indexRequest());
+                }
+            } catch (Throwable e) {
+                // the hits come with the concrete index, also when the job searched an alias
+                partialUpdateStats.stats(hit.getIndex(), mode).failed();
+                batchResult.failed++;
+                result.failure(hit.getIndex(), hit.getType(), hit.getId(), ExceptionsHelper.status(e), ExceptionsHelper.detailedMessage(e));
+            }
+        }
+        if (bulkRequest.numberOfActions() == 0) {
+            finish(batchResult, batchStart);
+            return;
+        }
+
+        final long indexStart = System.nanoTime();
+        client.bulk(bulkRequest, new ActionListener<BulkResponse>() {
+            @Override
+            public void onResponse(BulkResponse response) {
+                for (BulkItemResponse item : response.getItems()) {
+                    PartialUpdateStats.Stats stats = partialUpdateStats.stats(item.getIndex(), mode);
+                    stats.phase(PartialUpdateStats.Phase.INDEX, indexStart);
+                    if (!item.isFailed()) {
+                        stats.updated();
+                        batchResult.updated++;
+                    } else if (item.getFailure().getStatus() == RestStatus.CONFLICT) {
+                        stats.versionConflict();
+                        stats.failed();
+                        batchResult.versionConflicts++;
+                    } else {
+                        stats.failed();
+                        batchResult.failed++;
+                        result.failure(item.getIndex(), item.getType(), item.getId(), item.getFailure().getStatus(), item.getFailureMessage());
+                    }
+                }
+                finish(batchResult, batchStart);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                batchResult.failed = batchResult.hits;
+                batchResult.error = ExceptionsHelper.detailedMessage(e);
+                finish(batchResult, batchStart);
+            }
+        });
+    }
+
+    private void finish(BatchResult batchResult, long batchStart) {
+        batchResult.tookInMillis = System.currentTimeMillis() - batchStart;
+        result.add(batchResult);
+        if (logger.isDebugEnabled()) {
+            logger.debug("partial update by query job [{}] batch [{}]: hits [{}], updated [{}], noops [{}], conflicts [{}], failed [{}], progress [{}/{}]",
+                    id, batchResult.batch, batchResult.hits, batchResult.updated, batchResult.noops, batchResult.versionConflicts,
+                    batchResult.failed, result.processed.get(), result.total);
+        }
+        logProgress();
+        inFlight.release();
+    }
+
+    private void logProgress() {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (now - lastProgressLog < PROGRESS_LOG_INTERVAL) {
+                return;
+            }
+            lastProgressLog = now;
+        }
+        logger.info("partial update by query job [{}] progress [{}/{}], updated [{}], noops [{}], conflicts [{}], failed [{}]",
+                id, result.processed.get(), result.total, result.updated.get(), result.noops.get(), result.versionConflicts.get(),
+                result.failed.get());
+    }
+
+    /**
+     * The state of the job and what it did so far.
+     */
+    public void toXContent(XContentBuilder builder, ToXContent.Params params) throws IOException {
+        builder.field(Fields.JOB, id);
+        builder.field(Fields.STATE, state.name().toLowerCase(Locale.ROOT));
+        if (error != null) {
+            builder.field(Fields.ERROR, error);
+        }
+        result.toXContent(builder, params);
+    }
+
+    private static String fieldValue(SearchHit hit, String name) {
+        SearchHitField field = hit.field(name);
+        if (field == null || field.getValue() == null) {
+            return null;
+        }
+        return field.getValue().toString();
+    }
+
+    static class BatchResult implements ToXContent {
+        final int batch;
+        final int hits;
+        int updated;
+        int noops;
+        int versionConflicts;
+        int failed;
+        String error;
+        long tookInMillis;
+
+        BatchResult(int batch, int hits) {
+            this.batch = batch;
+            this.hits = hits;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field(Fields.BATCH, batch);
+            builder.field(Fields.HITS, hits);
+            builder.field(Fields.UPDATED, updated);
+            builder.field(Fields.NOOPS, noops);
+            builder.field(Fields.VERSION_CONFLICTS, versionConflicts);
+            builder.field(Fields.FAILED, failed);
+            builder.field(Fields.TOOK, tookInMillis);
+            if (error != null) {
+                builder.field(Fields.ERROR, error);
+            }
+            builder.endObject();
+            return builder;
+        }
+    }
+
+    static class Result implements ToXContent {
+        volatile long total;
+        volatile long startTime;
+        volatile long tookInMillis = -1;
+        final AtomicLong processed = new AtomicLong();
+        final AtomicLong updated = new AtomicLong();
+        final AtomicLong noops = new AtomicLong();
+        final AtomicLong versionConflicts = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        private final List<BatchResult> batches = Lists.newArrayList();
+        private final List<Object[]> failures = Lists.newArrayList();
+
+        synchronized void add(BatchResult batchResult) {
+            batches.add(batchResult);
+            processed.addAndGet(batchResult.hits);
+            updated.addAndGet(batchResult.updated);
+            noops.addAndGet(batchResult.noops);
+            versionConflicts.addAndGet(batchResult.versionConflicts);
+            failed.addAndGet(batchResult.failed);
+        }
+
+        synchronized void failure(String index, String type, String id, RestStatus status, String message) {
+            if (failures.size() < MAX_REPORTED_FAILURES) {
+                failures.add(new Object[]{index, type, id, status, message});
+            }
+        }
+
+        @Override
+        public synchronized XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            // a running job reports how long it has been running
+            builder.field(Fields.TOOK, tookInMillis >= 0 ? tookInMillis : System.currentTimeMillis() - startTime);
+            builder.field(Fields.TOTAL, total);
+            builder.field(Fields.PROCESSED, processed.get());
+            builder.field(Fields.UPDATED, updated.get());
+            builder.field(Fields.NOOPS, noops.get());
+            builder.field(Fields.VERSION_CONFLICTS, versionConflicts.get());
+            builder.field(Fields.FAILED, failed.get());
+            builder.startArray(Fields.BATCHES);
+            for (BatchResult batch : batches) {
+                batch.toXContent(builder, params);
+            }
+            builder.endArray();
+            builder.startArray(Fields.FAILURES);
+            for (Object[] failure : failures) {
+                builder.startObject();
+                builder.field(Fields._INDEX, failure[0]);
+                builder.field(Fields._TYPE, failure[1]);
+                builder.field(Fields._ID, failure[2]);
+                builder.field(Fields.STATUS, ((RestStatus) failure[3]).getStatus());
+                builder.field(Fields.ERROR, failure[4]);
+                builder.endObject();
+            }
+            builder.endArray();
+            return builder;
+        }
+    }
+
+    static final class Fields {
+        static final XContentBuilderString JOB = new XContentBuilderString("job");
+        static final XContentBuilderString STATE = new XContentBuilderString("state");
+        static final XContentBuilderString TOOK = new XContentBuilderString("took");
+        static final XContentBuilderString PROCESSED = new XContentBuilderString("processed");
+        static final XContentBuilderString TOTAL = new XContentBuilderString("total");
+        static final XContentBuilderString BATCH = new XContentBuilderString("batch");
+        static final XContentBuilderString BATCHES = new XContentBuilderString("batches");
+        static final XContentBuilderString HITS = new XContentBuilderString("hits");
+        static final XContentBuilderString UPDATED = new XContentBuilderString("updated");
+        static final XContentBuilderString NOOPS = new XContentBuilderString("noops");
+        static final XContentBuilderString VERSION_CONFLICTS = new XContentBuilderString("version_conflicts");
+        static final XContentBuilderString FAILED = new XContentBuilderString("failed");
+        static final XContentBuilderString FAILURES = new XContentBuilderString("failures");
+        static final XContentBuilderString _INDEX = new XContentBuilderString("_index");
+        static final XContentBuilderString _TYPE = new XContentBuilderString("_type");
+        static final XContentBuilderString _ID = new XContentBuilderString("_id");
+        static final XContentBuilderString STATUS = new XContentBuilderString("status");
+        static final XContentBuilderString ERROR = new XContentBuilderString("error");
+    }
+}
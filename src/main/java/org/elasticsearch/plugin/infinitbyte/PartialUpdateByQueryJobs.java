@@ -0,0 +1,69 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The partial update by query jobs of this node, running ones and the last
+ * <tt>partial_update.by_query.keep_finished</tt> (default 50) finished ones. Jobs are numbered per node
+ * and are lost when the node restarts.
+ */
+public class PartialUpdateByQueryJobs extends AbstractComponent {
+
+    private final int keepFinished;
+
+    /** by id, oldest first */
+    private final Map<Long, PartialUpdateByQueryJob> jobs = Maps.newLinkedHashMap();
+    private long nextId = 1;
+
+    @Inject
+    public PartialUpdateByQueryJobs(Settings settings) {
+        super(settings);
+        this.keepFinished = settings.getAsInt("partial_update.by_query.keep_finished", 50);
+    }
+
+    /**
+     * Gives the job its id and keeps track of it.
+     */
+    synchronized long register(PartialUpdateByQueryJob job) {
+        long id = nextId++;
+        job.id(id);
+        jobs.put(id, job);
+        prune();
+        return id;
+    }
+
+    synchronized PartialUpdateByQueryJob get(long id) {
+        return jobs.get(id);
+    }
+
+    synchronized List<PartialUpdateByQueryJob> jobs() {
+        return Lists.newArrayList(jobs.values());
+    }
+
+    /**
+     * Drops the oldest finished jobs beyond the ones to keep.
+     */
+    private void prune() {
+        int finished = 0;
+        for (PartialUpdateByQueryJob job : jobs.values()) {
+            if (job.state() != PartialUpdateByQueryJob.State.RUNNING) {
+                finished++;
+            }
+        }
+        Iterator<PartialUpdateByQueryJob> it = jobs.values().iterator();
+        while (finished > keepFinished && it.hasNext()) {
+            if (it.next().state() != PartialUpdateByQueryJob.State.RUNNING) {
+                it.remove();
+                finished--;
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.*;
+import org.elasticsearch.rest.action.support.RestXContentBuilder;
+
+import java.io.IOException;
+
+import static org.elasticsearch.rest.RestStatus.NOT_FOUND;
+import static org.elasticsearch.rest.RestStatus.OK;
+
+/**
+ * Shows and cancels the partial update by query jobs of the node that receives the request:
+ * <pre>
+ * curl -XGET 'localhost:9200/_partial_update_by_query'
+ * curl -XGET 'localhost:9200/_partial_update_by_query/3'
+ * curl -XPOST 'localhost:9200/_partial_update_by_query/3/_cancel'
+ * </pre>
+ */
+public class PartialUpdateByQueryJobsRestAction extends BaseRestHandler {
+
+    private final PartialUpdateByQueryJobs jobs;
+
+    @Inject
+    public PartialUpdateByQueryJobsRestAction(Settings settings, Client client,
+                                              RestController restController, PartialUpdateByQueryJobs jobs) {
+        super(settings, client);
+        this.jobs = jobs;
+        restController.registerHandler(RestRequest.Method.GET, "/_partial_update_by_query", this);
+        restController.registerHandler(RestRequest.Method.GET, "/_partial_update_by_query/{job}", this);
+        restController.registerHandler(RestRequest.Method.POST, "/_partial_update_by_query/{job}/_cancel", this);
+    }
+
+    public void handleRequest(final RestRequest request,
+                              final RestChannel channel) {
+        try {
+            XContentBuilder builder = RestXContentBuilder.restContentBuilder(request);
+            String id = request.param("job");
+            if (id == null) {
+                builder.startObject();
+                builder.field("node", settings.get("name"));
+                builder.startArray("jobs");
+                for (PartialUpdateByQueryJob job : jobs.jobs()) {
+                    builder.startObject();
+                    job.toXContent(builder, request);
+                    builder.endObject();
+                }
+                builder.endArray();
+                builder.endObject();
+                channel.sendResponse(new XContentRestResponse(request, OK, builder));
+                return;
+            }
+
+            PartialUpdateByQueryJob job;
+            try {
+                job = jobs.get(Long.parseLong(id));
+            } catch (NumberFormatException e) {
+                job = null;
+            }
+            if (job == null) {
+                builder.startObject().field("error", "partial update by query job [" + id + "] not found").endObject();
+                channel.sendResponse(new XContentRestResponse(request, NOT_FOUND, builder));
+                return;
+            }
+            builder.startObject();
+            if (request.method() == RestRequest.Method.POST) {
+                builder.field("cancelled", job.cancel());
+            }
+            job.toXContent(builder, request);
+            builder.endObject();
+            channel.sendResponse(new XContentRestResponse(request, OK, builder));
+        } catch (Throwable e) {
+            try {
+                channel.sendResponse(new XContentThrowableRestResponse(request, e));
+            } catch (IOException e1) {
+                logger.error("failed to send failure response", e1);
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.WriteConsistencyLevel;
+import org.elasticsearch.action.support.replication.ReplicationType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.rest.*;
+import org.elasticsearch.rest.action.support.RestXContentBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static org.elasticsearch.rest.RestStatus.ACCEPTED;
+import static org.elasticsearch.rest.RestStatus.BAD_REQUEST;
+import static org.elasticsearch.rest.RestStatus.OK;
+
+/**
+ * Applies pending changes to all documents matching a query:
+ * <pre>
+ * curl -XPOST 'localhost:9200/index/type1/_partial_update_by_query/append?batch_size=500&concurrency=4' -d'{
+ *     "query" : {"term" : {"user" : "medcl"}},
+ *     "doc" : {"tag" : ["vip"]}
+ * }'
+ * </pre>
+ * The request returns once every batch is written, see {@link PartialUpdateByQueryJob}. With
+ * <tt>wait_for_completion=false</tt> it returns the id of the job right away, its progress is then
+ * available from {@link PartialUpdateByQueryJobsRestAction}.
+ */
+public class PartialUpdateByQueryRestAction extends BaseRestHandler {
+
+    private final ThreadPool threadPool;
+    private final ClusterService clusterService;
+    private final PartialUpdateHelper partialUpdateHelper;
+    private final PartialUpdateStats partialUpdateStats;
+    private final PartialUpdateByQueryJobs jobs;
+
+    @Inject
+    public PartialUpdateByQueryRestAction(Settings settings, Client client,
+                                          RestController restController, ThreadPool threadPool, ClusterService clusterService,
+                                          PartialUpdateHelper partialUpdateHelper, PartialUpdateStats partialUpdateStats,
+                                          PartialUpdateByQueryJobs jobs) {
+        super(settings, client);
+        this.threadPool = threadPool;
+        this.clusterService = clusterService;
+        this.partialUpdateHelper = partialUpdateHelper;
+        this.partialUpdateStats = partialUpdateStats;
+        this.jobs = jobs;
+        restController.registerHandler(RestRequest.Method.POST, "/{index}/_partial_update_by_query", this);
+        restController.registerHandler(RestRequest.Method.POST, "/{index}/{type}/_partial_update_by_query", this);
+        restController.registerHandler(RestRequest.Method.POST, "/{index}/{type}/_partial_update_by_query/{array_merge}", this);
+    }
+
+    public void handleRequest(final RestRequest request,
+                              final RestChannel channel) {
+        PartialUpdateRequest template = new PartialUpdateRequest();
+        BytesReference query;
+        Map<String, Object> pending;
+        String[] indices = Strings.splitStringByCommaToArray(request.param("index"));
+        try {
+            if (!request.hasContent()) {
+                throw new ElasticsearchParseException("request body is required");
+            }
+            query = parseBody(request.content(), template);
+            if (query == null) {
+                throw new ElasticsearchParseException("query is missing");
+            }
+            if (template.doc() == null) {
+                throw new ElasticsearchParseException("doc is missing");
+            }
+            // parsed once here and shared by every document of the job
+            pending = PartialUpdateHelper.pendingChanges(template.doc());
+            if (pending.isEmpty()) {
+                throw new ElasticsearchParseException("doc is empty");
+            }
+        } catch (Exception e) {
+            try {
+                XContentBuilder builder = RestXContentBuilder.restContentBuilder(request);
+                channel.sendResponse(new XContentRestResponse(request, BAD_REQUEST,
+                        builder.startObject().field("error", e.getMessage()).endObject()));
+            } catch (IOException e1) {
+                logger.error("failed to send failure response", e1);
+            }
+            return;
+        }
+
+        template.arrayMerge(request.param("array_merge", "replace"));
+        template.arrayCap(request.paramAsInt("array_cap", template.arrayCap()));
+        template.dottedPaths(request.paramAsBoolean("dotted_paths", template.dottedPaths()));
+        template.touchTimestamp(request.paramAsBoolean("touch_timestamp", template.touchTimestamp()));
+        template.timeout(request.paramAsTime("timeout", template.timeout()));
+        String replicationType = request.param("replication");
+        if (replicationType != null) {
+            template.replicationType(ReplicationType.fromString(replicationType));
+        }
+        String consistencyLevel = request.param("consistency");
+        if (consistencyLevel != null) {
+            template.consistencyLevel(WriteConsistencyLevel.fromString(consistencyLevel));
+        }
+
+        int batchSize = request.paramAsInt("batch_size", 100);
+        int concurrency = Math.max(1, request.paramAsInt("concurrency", 2));
+        TimeValue throttle = request.paramAsTime("throttle", TimeValue.timeValueMillis(0));
+        TimeValue scroll = request.paramAsTime("scroll", TimeValue.timeValueMinutes(5));
+
+        int shards = shards(indices);
+        final boolean waitForCompletion = request.paramAsBoolean("wait_for_completion", true);
+
+        PartialUpdateByQueryJob job = new PartialUpdateByQueryJob(client, partialUpdateHelper, partialUpdateStats, logger,
+                indices, Strings.splitStringByCommaToArray(request.param("type")),
+                query, template, pending, batchSize, shards, concurrency, throttle, scroll,
+                new ActionListener<PartialUpdateByQueryJob>() {
+                    public void onResponse(PartialUpdateByQueryJob job) {
+                        if (!waitForCompletion) {
+                            return;
+                        }
+                        try {
+                            XContentBuilder builder = RestXContentBuilder
+                                    .restContentBuilder(request);
+                            builder.startObject();
+                            job.toXContent(builder, request);
+                            builder.endObject();
+                            channel.sendResponse(new XContentRestResponse(
+                                    request, OK, builder));
+                        } catch (Exception e) {
+                            onFailure(e);
+                        }
+                    }
+
+                    public void onFailure(Throwable e) {
+                        if (!waitForCompletion) {
+                            // the job logged it, its status holds the error
+                            return;
+                        }
+                        try {
+                            channel.sendResponse(new XContentThrowableRestResponse(
+                                    request, e));
+                        } catch (IOException e1) {
+                            logger.error("failed to send failure response", e1);
+                        }
+                    }
+                });
+        long id = jobs.register(job);
+        // the job blocks on the scroll and on in flight bulk requests, keep it off the network threads
+        threadPool.generic().execute(job);
+
+        if (!waitForCompletion) {
+            try {
+                XContentBuilder builder = RestXContentBuilder.restContentBuilder(request);
+                builder.startObject().field("ok", true).field("job", id).endObject();
+                channel.sendResponse(new XContentRestResponse(request, ACCEPTED, builder));
+            } catch (IOException e) {
+                logger.error("failed to send response", e);
+            }
+        }
+    }
+
+    /**
+     * The number of primary shards the job reads from, a scan returns its size from each of them.
+     */
+    private int shards(String[] indices) {
+        MetaData metaData = clusterService.state().metaData();
+        String[] concreteIndices;
+        try {
+            concreteIndices = metaData.concreteIndices(indices);
+        } catch (Exception e) {
+            // a missing index fails the search of the job itself
+            return 1;
+        }
+        int shards = 0;
+        for (String index : concreteIndices) {
+            IndexMetaData indexMetaData = metaData.index(index);
+            if (indexMetaData != null) {
+                shards += indexMetaData.numberOfShards();
+            }
+        }
+        return Math.max(1, shards);
+    }
+
+    /**
+     * Reads <tt>query</tt> and <tt>doc</tt> from the body, returns the query and sets the doc on the template.
+     */
+    private BytesReference parseBody(BytesReference content, PartialUpdateRequest template) throws IOException {
+        BytesReference query = null;
+        XContentParser parser = XContentFactory.xContent(content).createParser(content);
+        try {
+            XContentParser.Token token = parser.nextToken();
+            if (token != XContentParser.Token.START_OBJECT) {
+                throw new ElasticsearchParseException("request body must be an object");
+            }
+            String currentFieldName = null;
+            while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                if (token == XContentParser.Token.FIELD_NAME) {
+                    currentFieldName = parser.currentName();
+                } else if (token == XContentParser.Token.START_OBJECT) {
+                    XContentBuilder builder = XContentFactory.contentBuilder(parser.contentType());
+                    builder.copyCurrentStructure(parser);
+                    if ("query".equals(currentFieldName)) {
+                        query = builder.bytes();
+                    } else if ("doc".equals(currentFieldName)) {
+                        template.doc(builder.bytes());
+                    } else {
+                        throw new ElasticsearchParseException("unknown field [" + currentFieldName + "]");
+                    }
+                } else {
+                    throw new ElasticsearchParseException("unexpected token [" + token + "] for [" + currentFieldName + "]");
+                }
+            }
+        } finally {
+            parser.close();
+        }
+        return query;
+    }
+}
@@ -0,0 +1,479 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.component.LifecycleListener;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write behind buffer for <tt>mode=coalesce</tt> updates. Pending changes for the same document are
+ * kept in memory and folded into each other, then written with a single partial update once the
+ * buffer is older than <tt>partial_update.coalesce.window</tt> (default 1s), holds
+ * <tt>partial_update.coalesce.max_patches</tt> changes (default 1000), or has to make room because all
+ * buffers together exceed <tt>partial_update.coalesce.max_memory</tt> (default 16mb). Memory is the
+ * estimated heap size of the parsed changes, which is a few times their size in the request. When the node
+ * stops, open buffers are flushed before the indices are closed, while the node can still write, and
+ * waited for up to <tt>partial_update.coalesce.shutdown_timeout</tt> (default 30s). Changes not written
+ * by then are lost.
+ * <p/>
+ * Folding follows the array merge mode of the changes: with <tt>replace</tt> a later value of a field
+ * wins, with <tt>append</tt>, <tt>add_to_set</tt> and <tt>union</tt> the arrays given for a field are
+ * concatenated, which gives the same result as applying them one after the other as long as the field
+ * is an array. A change that can not be folded, because it uses another array merge mode, an
+ * <tt>array_cap</tt>, a value that is not an array or {@link UpdatePlan update operators}, closes the
+ * current buffer and opens a new one. Capped arrays are never folded, the cap applies to each change on
+ * its own. <tt>remove</tt> changes are not folded either, each one is written with its own update. Buffers
+ * of the same document are written in the order they were opened.
+ * <p/>
+ * Buffered changes are lost if the node dies before they are written, and a failing write can only be
+ * logged since its callers got their response already.
+ */
+public class PartialUpdateCoalescer extends AbstractLifecycleComponent<PartialUpdateCoalescer> {
+
+    private final Client client;
+    private final ThreadPool threadPool;
+    private final PartialUpdateStats partialUpdateStats;
+
+    private final TimeValue window;
+    private final int maxPatches;
+    private final long maxMemory;
+    private final int retryOnConflict;
+    private final TimeValue shutdownTimeout;
+
+    /** open buffers, oldest first */
+    private final Map<Key, Pending> buffers = Maps.newLinkedHashMap();
+    /** the last closed buffer of each document that is not written yet */
+    private final Map<Key, Pending> flushing = Maps.newHashMap();
+    private long memory;
+    /** set once the buffers were flushed on shutdown, later changes are written right away */
+    private volatile boolean stopping;
+
+    @Inject
+    public PartialUpdateCoalescer(Settings settings, Client client, ThreadPool threadPool, IndicesService indicesService,
+                                  PartialUpdateStats partialUpdateStats) {
+        super(settings);
+        this.client = client;
+        this.threadPool = threadPool;
+        this.partialUpdateStats = partialUpdateStats;
+        this.window = settings.getAsTime("partial_update.coalesce.window", TimeValue.timeValueSeconds(1));
+        this.maxPatches = settings.getAsInt("partial_update.coalesce.max_patches", 1000);
+        this.maxMemory = settings.getAsBytesSize("partial_update.coalesce.max_memory", new ByteSizeValue(16, ByteSizeUnit.MB)).bytes();
+        this.retryOnConflict = settings.getAsInt("partial_update.coalesce.retry_on_conflict", 5);
+        this.shutdownTimeout = settings.getAsTime("partial_update.coalesce.shutdown_timeout", TimeValue.timeValueSeconds(30));
+        // plugin services are stopped last, after the transport and cluster services, too late to write anything
+        indicesService.addLifecycleListener(new LifecycleListener() {
+            @Override
+            public void beforeStop() {
+                flushAll();
+            }
+        });
+    }
+
+    @Override
+    protected void doStart() throws ElasticsearchException {
+    }
+
+    @Override
+    protected void doStop() throws ElasticsearchException {
+        if (!stopping) {
+            flushAll();
+            return;
+        }
+        synchronized (this) {
+            if (!buffers.isEmpty() || !flushing.isEmpty()) {
+                logger.warn("[{}] coalesced updates were not written before shutdown and are lost", buffers.size() + flushing.size());
+            }
+        }
+    }
+
+    @Override
+    protected void doClose() throws ElasticsearchException {
+    }
+
+    /**
+     * Writes all open buffers and waits for them, later changes are written right away.
+     */
+    private void flushAll() {
+        List<Pending> toFlush = Lists.newArrayList();
+        synchronized (this) {
+            stopping = true;
+            for (Pending pending : Lists.newArrayList(buffers.values())) {
+                Pending ready = close(pending);
+                if (ready != null) {
+                    toFlush.add(ready);
+                }
+            }
+        }
+        logger.debug("flushing [{}] coalesced updates on shutdown", toFlush.size());
+        for (Pending pending : toFlush) {
+            write(pending);
+        }
+        long deadline = System.currentTimeMillis() + shutdownTimeout.millis();
+        synchronized (this) {
+            while (!flushing.isEmpty()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    logger.warn("gave up waiting for [{}] coalesced updates to be written", flushing.size());
+                    break;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Buffers the pending changes of the request. Once the node stops, changes are written right away.
+     */
+    public void add(PartialUpdateRequest request) {
+        if (request.version() != Versions.MATCH_ANY || request.versionType() != VersionType.INTERNAL) {
+            throw new ElasticsearchIllegalArgumentException("coalesce mode does not support versioned updates");
+        }
+        if (request.refresh()) {
+            throw new ElasticsearchIllegalArgumentException("coalesce mode does not support refresh");
+        }
+        if (request.fetchSource() != null && request.fetchSource().fetchSource()) {
+            throw new ElasticsearchIllegalArgumentException("coalesce mode does not return the document");
+        }
+        Map<String, Object> doc;
+        try {
+            doc = XContentHelper.convertToMap(request.doc(), true).v2();
+        } catch (Exception e) {
+            throw new ElasticsearchIllegalArgumentException("failed to parse pending changes", e);
+        }
+        if (doc.isEmpty()) {
+            partialUpdateStats.stats(request).emptyPatch();
+            throw new ElasticsearchIllegalArgumentException("pending changes is empty");
+        }
+        if (stopping || !lifecycle.started()) {
+            write(new Pending(new Key(request), request, doc));
+            return;
+        }
+
+        List<Pending> toFlush = Lists.newArrayList();
+        Key key = new Key(request);
+        long bytes = ramBytes(doc);
+        boolean buffered;
+        synchronized (this) {
+            // the buffers may have been flushed on shutdown meanwhile
+            buffered = !stopping;
+            if (buffered) {
+                buffer(toFlush, key, request, doc, bytes);
+            } else {
+                toFlush.add(new Pending(key, request, doc));
+            }
+        }
+        if (buffered) {
+            partialUpdateStats.stats(request).coalesced();
+        }
+        for (Pending ready : toFlush) {
+            write(ready);
+        }
+    }
+
+    /**
+     * Folds the changes into the open buffer of the document or opens a new one, collects the buffers
+     * closed meanwhile that can be written.
+     */
+    private void buffer(List<Pending> toFlush, Key key, PartialUpdateRequest request, Map<String, Object> doc, long bytes) {
+        Pending pending = buffers.get(key);
+        if (pending != null && !pending.fold(request, doc)) {
+            addIfReady(toFlush, close(pending));
+            pending = null;
+        }
+        if (pending == null) {
+            pending = new Pending(key, request, doc);
+            buffers.put(key, pending);
+            scheduleFlush(pending);
+        }
+        memory += bytes;
+        pending.bytes += bytes;
+        if (pending.patches >= maxPatches) {
+            addIfReady(toFlush, close(pending));
+        }
+        Iterator<Pending> oldest = buffers.values().iterator();
+        while (memory > maxMemory && oldest.hasNext()) {
+            Pending evicted = oldest.next();
+            oldest.remove();
+            addIfReady(toFlush, closeRemoved(evicted));
+        }
+    }
+
+    private void scheduleFlush(final Pending pending) {
+        threadPool.schedule(window, ThreadPool.Names.GENERIC, new Runnable() {
+            @Override
+            public void run() {
+                Pending ready = null;
+                synchronized (PartialUpdateCoalescer.this) {
+                    if (buffers.get(pending.key) == pending) {
+                        ready = close(pending);
+                    }
+                }
+                if (ready != null) {
+                    write(ready);
+                }
+            }
+        });
+    }
+
+    /**
+     * Estimates the heap held by parsed changes: object headers, references and the chars of strings,
+     * for a 64 bit JVM with compressed oops. Only meant to bound the buffers, not to be exact.
+     */
+    @SuppressWarnings("unchecked")
+    static long ramBytes(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof String) {
+            // the string and its char array
+            return 40 + 2 * ((String) value).length();
+        } else if (value instanceof Map) {
+            // the map and its table, each entry with its key
+            long bytes = 64;
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                bytes += 40 + ramBytes(entry.getKey()) + ramBytes(entry.getValue());
+            }
+            return bytes;
+        } else if (value instanceof List) {
+            long bytes = 40;
+            for (Object element : (List<Object>) value) {
+                bytes += 4 + ramBytes(element);
+            }
+            return bytes;
+        } else if (value instanceof byte[]) {
+            return 16 + ((byte[]) value).length;
+        }
+        // boxed numbers and booleans
+        return 16;
+    }
+
+    private static void addIfReady(List<Pending> toFlush, Pending ready) {
+        if (ready != null) {
+            toFlush.add(ready);
+        }
+    }
+
+    /**
+     * Closes an open buffer. Returns it if it can be written now, or <tt>null</tt> if it waits for an
+     * earlier buffer of the same document.
+     */
+    private Pending close(Pending pending) {
+        buffers.remove(pending.key);
+        return closeRemoved(pending);
+    }
+
+    private Pending closeRemoved(Pending pending) {
+        memory -= pending.bytes;
+        Pending previous = flushing.put(pending.key, pending);
+        if (previous != null) {
+            previous.next = pending;
+            return null;
+        }
+        return pending;
+    }
+
+    private void write(final Pending pending) {
+        PartialUpdateRequest request;
+        try {
+            request = pending.toRequest(retryOnConflict);
+        } catch (IOException e) {
+            logger.warn("failed to build coalesced update for [{}]", e, pending.key);
+            written(pending);
+            return;
+        }
+        client.execute(PartialUpdateAction.INSTANCE, request, new ActionListener<PartialUpdateResponse>() {
+            @Override
+            public void onResponse(PartialUpdateResponse response) {
+                if (logger.isTraceEnabled()) {
+                    logger.trace("wrote [{}] coalesced changes to [{}], version [{}]", pending.patches, pending.key, response.getVersion());
+                }
+                written(pending);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                logger.warn("failed to write [{}] coalesced changes to [{}]", e, pending.patches, pending.key);
+                written(pending);
+            }
+        });
+    }
+
+    /**
+     * Called once a buffer was written, writes the next buffer of the same document if it was closed meanwhile.
+     */
+    private void written(Pending pending) {
+        Pending next;
+        synchronized (this) {
+            next = pending.next;
+            if (next == null && flushing.get(pending.key) == pending) {
+                flushing.remove(pending.key);
+                notifyAll();
+            }
+        }
+        if (next != null) {
+            write(next);
+        }
+    }
+
+    static final class Key {
+        final String index;
+        final String type;
+        final String id;
+        final String routing;
+
+        Key(PartialUpdateRequest request) {
+            this.index = request.index();
+            this.type = request.type();
+            this.id = request.id();
+            this.routing = request.routing();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return index.equals(key.index) && type.equals(key.type) && id.equals(key.id)
+                    && (routing == null ? key.routing == null : routing.equals(key.routing));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = index.hashCode();
+            result = 31 * result + type.hashCode();
+            result = 31 * result + id.hashCode();
+            result = 31 * result + (routing != null ? routing.hashCode() : 0);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + index + "][" + type + "][" + id + "]";
+        }
+    }
+
+    /**
+     * The folded changes of one document in one array merge mode.
+     */
+    static final class Pending {
+        final Key key;
+        final PartialUpdateRequest template;
+        final XContentType contentType;
+        final Map<String, Object> doc;
+        int patches = 1;
+        long bytes;
+        /** the buffer of the same document closed after this one, written once this one is */
+        Pending next;
+
+        Pending(Key key, PartialUpdateRequest template, Map<String, Object> doc) {
+            this.key = key;
+            this.template = template;
+            this.contentType = XContentFactory.xContentType(template.doc());
+            this.doc = Maps.newLinkedHashMap(doc);
+            // the folded changes replace the request body, don't hold on to it
+            template.doc(null);
+        }
+
+        /**
+         * Folds the changes into this buffer, returns <tt>false</tt> without changing anything if they can not be folded.
+         */
+        @SuppressWarnings("unchecked")
+        boolean fold(PartialUpdateRequest request, Map<String, Object> changes) {
+            if (!template.arrayMerge().equals(request.arrayMerge()) || template.touchTimestamp() != request.touchTimestamp()
+                    || template.dottedPaths() != request.dottedPaths()) {
+                return false;
+            }
+            if (XContentSourceMerger.MERGE_REMOVE.equals(template.arrayMerge())) {
+                // removes are written as they came, one update each
+                return false;
+            }
+            if (template.arrayCap() > 0 || request.arrayCap() > 0) {
+                // capping the folded arrays once is not the same as capping after each change
+                return false;
+            }
+            if (UpdatePlan.isOperatorPatch(doc) || UpdatePlan.isOperatorPatch(changes)) {
+                // operators are applied one patch at a time
+                return false;
+            }
+            boolean replace = !XContentSourceMerger.isArrayMerge(template.arrayMerge());
+            for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                Object current = doc.get(entry.getKey());
+                if (current == null && !doc.containsKey(entry.getKey())) {
+                    // a new path must not overlap with the paths buffered so far
+                    for (String path : doc.keySet()) {
+                        if (overlaps(path, entry.getKey(), template.dottedPaths())) {
+                            return false;
+                        }
+                    }
+                } else if (!replace && !(current instanceof List && entry.getValue() instanceof List)) {
+                    return false;
+                }
+            }
+            for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                Object current = doc.get(entry.getKey());
+                if (!replace && current instanceof List) {
+                    List<Object> values = Lists.newArrayList((List<Object>) current);
+                    values.addAll((List<Object>) entry.getValue());
+                    doc.put(entry.getKey(), values);
+                } else {
+                    doc.put(entry.getKey(), entry.getValue());
+                }
+            }
+            patches++;
+            return true;
+        }
+
+        private static boolean overlaps(String a, String b, boolean dottedPaths) {
+            String[] pathA = PatchTree.path(a, dottedPaths);
+            String[] pathB = PatchTree.path(b, dottedPaths);
+            for (int i = 0; i < Math.min(pathA.length, pathB.length); i++) {
+                if (!pathA[i].equals(pathB[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        PartialUpdateRequest toRequest(int retryOnConflict) throws IOException {
+            PartialUpdateRequest request = new PartialUpdateRequest(template.index(), template.type(), template.id());
+            request.listenerThreaded(false);
+            request.routing(template.routing());
+            request.parent(template.parent());
+            request.arrayMerge(template.arrayMerge());
+            request.arrayCap(template.arrayCap());
+            request.dottedPaths(template.dottedPaths());
+            request.doc(XContentFactory.contentBuilder(contentType).map(doc).bytes());
+            request.retryOnConflict(retryOnConflict);
+            request.touchTimestamp(template.touchTimestamp());
+            request.timeout(template.timeout());
+            request.replicationType(template.replicationType());
+            request.consistencyLevel(template.consistencyLevel());
+            return request;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Thrown when an <tt>$if_equals</tt> guard of an update does not match the current document.
+ */
+public class PartialUpdateConditionException extends ElasticsearchException {
+
+    public PartialUpdateConditionException(String path, Object expected, Object current) {
+        super("condition failed, field [" + path + "] is [" + current + "], expected [" + expected + "]");
+    }
+
+    @Override
+    public RestStatus status() {
+        return RestStatus.CONFLICT;
+    }
+}
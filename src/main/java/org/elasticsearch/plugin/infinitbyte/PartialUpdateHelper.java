@@ -0,0 +1,236 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.engine.DocumentMissingException;
+import org.elasticsearch.index.get.GetResult;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.index.shard.service.IndexShard;
+import org.elasticsearch.search.fetch.source.FetchSourceContext;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Reads the current document from the local shard and merges the pending changes into it,
+ * producing the {@link IndexRequest} that replaces the document.
+ */
+public class PartialUpdateHelper extends AbstractComponent {
+
+    public static final String LAST_PARTIAL_UPDATED = "_last_partial_updated";
+
+    private final SourceMerger merger;
+    private final UpdatePlans updatePlans;
+    private final SourceCache sourceCache;
+    private final PartialUpdateStats partialUpdateStats;
+
+    @Inject
+    public PartialUpdateHelper(Settings settings, SourceMerger merger, UpdatePlans updatePlans, SourceCache sourceCache,
+                               PartialUpdateStats partialUpdateStats) {
+        super(settings);
+        this.merger = merger;
+        this.updatePlans = updatePlans;
+        this.sourceCache = sourceCache;
+        this.partialUpdateStats = partialUpdateStats;
+    }
+
+    public Result prepare(PartialUpdateRequest request, IndexShard indexShard) {
+        PartialUpdateStats.Stats stats = partialUpdateStats.stats(request);
+        long getStart = System.nanoTime();
+        SourceCache.Entry cached = sourceCache.get(indexShard, request);
+        if (cached != null) {
+            // only the version is looked up, the source is not loaded
+            GetResult current = get(request, indexShard, FetchSourceContext.DO_NOT_FETCH_SOURCE);
+            if (current.isExists() && current.getVersion() == cached.version()) {
+                stats.phase(PartialUpdateStats.Phase.GET, getStart);
+                sourceCache.hit();
+                return prepare(request, cached.version(), cached.source());
+            }
+            sourceCache.stale(indexShard, request);
+        }
+        final GetResult getResult = get(request, indexShard, FetchSourceContext.FETCH_SOURCE);
+        stats.phase(PartialUpdateStats.Phase.GET, getStart);
+
+        if (!getResult.isExists()) {
+            stats.notFound();
+            throw new DocumentMissingException(new ShardId(request.index(), request.shardId()), request.type(), request.id());
+        }
+        return prepare(request, getResult.getVersion(), getResult.isSourceEmpty() ? null : getResult.sourceRef());
+    }
+
+    private GetResult get(PartialUpdateRequest request, IndexShard indexShard, FetchSourceContext fetchSourceContext) {
+        return indexShard.getService().get(request.type(), request.id(),
+                Strings.EMPTY_ARRAY, true, isExternalVersion(request) ? Versions.MATCH_ANY : request.version(), VersionType.INTERNAL,
+                fetchSourceContext);
+    }
+
+    /**
+     * Remembers the source written by an update, so the next update of the document can skip loading it.
+     */
+    public void written(PartialUpdateRequest request, IndexShard indexShard, Result result, long version) {
+        if (sourceCache.enabled() && !result.noop()) {
+            sourceCache.put(indexShard, request, result.indexRequest().source(), version);
+        }
+    }
+
+    /**
+     * Merges the pending changes of the request into <tt>source</tt>, which was read at <tt>version</tt>.
+     * When the changes leave every field as it is, the result is a noop and nothing needs to be written.
+     */
+    public Result prepare(PartialUpdateRequest request, long version, BytesReference source) {
+        long parseStart = System.nanoTime();
+        Map<String, Object> pending = pendingChanges(request.doc());
+        partialUpdateStats.stats(request.index(), PartialUpdateStats.mode(request, pending)).phase(PartialUpdateStats.Phase.PARSE, parseStart);
+        return prepare(request, pending, version, source);
+    }
+
+    /**
+     * Like {@link #prepare(PartialUpdateRequest, long, BytesReference)}, with the pending changes of the
+     * request already parsed, so changes applied to many documents are parsed once. They are only read.
+     */
+    public Result prepare(PartialUpdateRequest request, Map<String, Object> pending, long version, BytesReference source) {
+        if (source == null || source.length() == 0) {
+            throw new ElasticsearchIllegalArgumentException("source is empty");
+        }
+        final boolean externalVersion = isExternalVersion(request);
+
+        PartialUpdateStats.Stats stats = partialUpdateStats.stats(request.index(), PartialUpdateStats.mode(request, pending));
+        if (pending.isEmpty()) {
+            stats.emptyPatch();
+            throw new ElasticsearchIllegalArgumentException("pending changes is empty");
+        }
+
+        long epoch = request.touchTimestamp() ? System.currentTimeMillis() / 1000 : -1;
+        long mergeStart = System.nanoTime();
+        MergeResult merged;
+        try {
+            if (UpdatePlan.isOperatorPatch(pending)) {
+                if (XContentSourceMerger.isArrayMerge(request.arrayMerge())) {
+                    throw new ElasticsearchIllegalArgumentException("array_merge can not be combined with update operators");
+                }
+                UpdatePlan.Shape shape = new UpdatePlan.Shape(pending);
+                merged = updatePlans.plan(shape).apply(source, shape.values(), epoch);
+            } else {
+                merged = merger.merge(source, pending, request.dottedPaths(), request.arrayMerge(), request.arrayCap(), epoch);
+            }
+            if (logger.isTraceEnabled()) {
+                logger.trace("pending:{}, changed:{}, merged:{}", pending, merged.changed(),
+                        XContentHelper.convertToJson(merged.source().bytes(), false));
+            }
+        } catch (IOException e) {
+            throw new ElasticsearchParseException("failed to merge pending changes into [" + request.index() + "][" + request.type() + "][" + request.id() + "]", e);
+        }
+        stats.phase(PartialUpdateStats.Phase.MERGE, mergeStart);
+        if (!merged.changed()) {
+            stats.noop();
+            return new Result(null, version, source);
+        }
+
+        IndexRequest indexRequest = new IndexRequest(request.index(), request.type(), request.id());
+        indexRequest.routing(request.routing());
+        indexRequest.parent(request.parent());
+        // the merge already wrote the new source, this only hands its buffer over
+        indexRequest.source(merged.source());
+        stats.bytes(source.length(), indexRequest.source().length());
+        indexRequest.timeout(request.timeout());
+        indexRequest.refresh(request.refresh());
+        if (externalVersion) {
+            indexRequest.version(request.version());
+            indexRequest.versionType(VersionType.EXTERNAL);
+        } else {
+            // index against the version that was read, so a concurrent write shows up as a conflict
+            indexRequest.version(version);
+            indexRequest.versionType(VersionType.INTERNAL);
+        }
+        indexRequest.opType(IndexRequest.OpType.INDEX);
+        indexRequest.replicationType(request.replicationType());
+        indexRequest.consistencyLevel(request.consistencyLevel());
+        return new Result(indexRequest, version, indexRequest.source());
+    }
+
+    /**
+     * The part of the updated document the request asked for, filtered from the source the update
+     * produced the same way a get filters it, <tt>null</tt> if it asked for none.
+     */
+    public BytesReference responseSource(PartialUpdateRequest request, Result result) {
+        FetchSourceContext fetchSource = request.fetchSource();
+        if (fetchSource == null || !fetchSource.fetchSource()) {
+            return null;
+        }
+        String[] includes = fetchSource.includes();
+        String[] excludes = fetchSource.excludes();
+        if ((includes == null || includes.length == 0) && (excludes == null || excludes.length == 0)) {
+            return result.source();
+        }
+        try {
+            Tuple<XContentType, Map<String, Object>> source = XContentHelper.convertToMap(result.source(), true);
+            Map<String, Object> filtered = XContentMapValues.filter(source.v2(), includes, excludes);
+            return XContentFactory.contentBuilder(source.v1()).map(filtered).bytes();
+        } catch (IOException e) {
+            throw new ElasticsearchParseException("failed to filter the source of [" + request.index() + "][" + request.type() + "][" + request.id() + "]", e);
+        }
+    }
+
+    /**
+     * An external version is the caller's own clock, so it is passed through to the index request
+     * untouched; otherwise the requested version is a precondition on the read.
+     */
+    static boolean isExternalVersion(PartialUpdateRequest request) {
+        return request.versionType() == VersionType.EXTERNAL && request.version() != Versions.MATCH_ANY;
+    }
+
+    static Map<String, Object> pendingChanges(BytesReference doc) {
+        return XContentHelper.convertToMap(doc, true).v2();
+    }
+
+    public static class Result {
+
+        private final IndexRequest indexRequest;
+        private final long version;
+        private final BytesReference source;
+
+        Result(IndexRequest indexRequest, long version, BytesReference source) {
+            this.indexRequest = indexRequest;
+            this.version = version;
+            this.source = source;
+        }
+
+        /**
+         * The request writing the merged document, <tt>null</tt> for a noop.
+         */
+        public IndexRequest indexRequest() {
+            return indexRequest;
+        }
+
+        /**
+         * The version the document was read at.
+         */
+        public long version() {
+            return version;
+        }
+
+        public boolean noop() {
+            return indexRequest == null;
+        }
+
+        /**
+         * The document after the update, the source as read for a noop.
+         */
+        public BytesReference source() {
+            return source;
+        }
+    }
+}
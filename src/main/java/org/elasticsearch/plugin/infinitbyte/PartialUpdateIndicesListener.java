@@ -0,0 +1,77 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.indexing.IndexingOperationListener;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.index.shard.service.IndexShard;
+import org.elasticsearch.indices.IndicesLifecycle;
+import org.elasticsearch.indices.IndicesService;
+
+/**
+ * Drops what the plugin keeps per index once the index is gone. Stats are dropped when the index is
+ * deleted from the cluster: every node may hold stats of an index, also one without shards of it
+ * that only received bulk or by query updates for it. Cached sources are dropped when a shard or
+ * index is closed on this node, and a document's source when the document is deleted.
+ */
+public class PartialUpdateIndicesListener extends AbstractComponent implements ClusterStateListener {
+
+    private final PartialUpdateStats partialUpdateStats;
+    private final SourceCache sourceCache;
+
+    @Inject
+    public PartialUpdateIndicesListener(Settings settings, ClusterService clusterService, IndicesService indicesService,
+                                        PartialUpdateStats partialUpdateStats, SourceCache sourceCache) {
+        super(settings);
+        this.partialUpdateStats = partialUpdateStats;
+        this.sourceCache = sourceCache;
+        clusterService.add(this);
+        if (sourceCache.enabled()) {
+            indicesService.indicesLifecycle().addListener(new SourceCacheLifecycle());
+        }
+    }
+
+    @Override
+    public void clusterChanged(ClusterChangedEvent event) {
+        for (String index : event.indicesDeleted()) {
+            if (partialUpdateStats.remove(index)) {
+                logger.debug("dropped partial update stats of deleted index [{}]", index);
+            }
+        }
+    }
+
+    private class SourceCacheLifecycle extends IndicesLifecycle.Listener {
+
+        @Override
+        public void afterIndexShardCreated(final IndexShard indexShard) {
+            indexShard.indexingService().addListener(new IndexingOperationListener() {
+                @Override
+                public void postDelete(Engine.Delete delete) {
+                    // once the delete is garbage collected the versions of the id start over
+                    sourceCache.deleted(indexShard, delete.type(), delete.id());
+                }
+
+                @Override
+                public void postDeleteByQuery(Engine.DeleteByQuery deleteByQuery) {
+                    sourceCache.clear(indexShard.shardId());
+                }
+            });
+        }
+
+        @Override
+        public void afterIndexShardClosed(ShardId shardId) {
+            sourceCache.clear(shardId);
+        }
+
+        @Override
+        public void afterIndexClosed(Index index) {
+            sourceCache.clear(index.name());
+        }
+    }
+}
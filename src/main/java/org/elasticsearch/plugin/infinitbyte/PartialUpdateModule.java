@@ -0,0 +1,22 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.common.inject.AbstractModule;
+
+/**
+ * Binds the shared partial update components.
+ */
+public class PartialUpdateModule extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        bind(SourceMerger.class).to(XContentSourceMerger.class).asEagerSingleton();
+        bind(UpdatePlans.class).asEagerSingleton();
+        bind(SourceCache.class).asEagerSingleton();
+        bind(PartialUpdateStats.class).asEagerSingleton();
+        bind(PartialUpdateHelper.class).asEagerSingleton();
+        bind(PartialUpdateCoalescer.class).asEagerSingleton();
+        bind(RefreshCoalescer.class).asEagerSingleton();
+        bind(PartialUpdateByQueryJobs.class).asEagerSingleton();
+        bind(PartialUpdateIndicesListener.class).asEagerSingleton();
+    }
+}
@@ -1,8 +1,18 @@
 package org.elasticsearch.plugin.infinitbyte;
 
+import org.elasticsearch.action.ActionModule;
+import org.elasticsearch.cluster.settings.IndexDynamicSettingsModule;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.component.LifecycleComponent;
+import org.elasticsearch.common.inject.Module;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.plugins.AbstractPlugin;
 import org.elasticsearch.rest.RestModule;
 
+import java.util.Collection;
+
 
 /**
  * Created by IntelliJ IDEA.
@@ -12,6 +22,19 @@ import org.elasticsearch.rest.RestModule;
  */
 public class PartialUpdatePlugin extends AbstractPlugin {
 
+    /**
+     * The thread pool merges run on, a fixed pool sized by <tt>threadpool.partial_update.size</tt>
+     * (default one thread per processor) with <tt>threadpool.partial_update.queue_size</tt> (default 200)
+     * queued merges. Merges beyond that are rejected.
+     */
+    public static final String THREAD_POOL = "partial_update";
+
+    private final Settings settings;
+
+    public PartialUpdatePlugin(Settings settings) {
+        this.settings = settings;
+    }
+
     public String name() {
         return "DocumentPartialUpdate";
     }
@@ -20,7 +43,45 @@ public class PartialUpdatePlugin extends AbstractPlugin {
         return "a document partial update plugin for elasticsearch,allows you to update a document without full reindex.";
     }
 
+    @Override
+    public Settings additionalSettings() {
+        // plugin settings override the node settings, so carry over what the node configured
+        String prefix = "threadpool." + THREAD_POOL + ".";
+        return ImmutableSettings.settingsBuilder()
+                .put(prefix + "type", "fixed")
+                .put(prefix + "size", settings.getAsInt(prefix + "size", EsExecutors.boundedNumberOfProcessors(settings)))
+                .put(prefix + "queue_size", settings.getAsInt(prefix + "queue_size", 200))
+                .build();
+    }
+
+    @Override
+    public Collection<Class<? extends Module>> modules() {
+        Collection<Class<? extends Module>> modules = Lists.newArrayList();
+        modules.add(PartialUpdateModule.class);
+        return modules;
+    }
+
+    @Override
+    public Collection<Class<? extends LifecycleComponent>> services() {
+        Collection<Class<? extends LifecycleComponent>> services = Lists.newArrayList();
+        services.add(PartialUpdateCoalescer.class);
+        return services;
+    }
+
+    public void onModule(IndexDynamicSettingsModule module) {
+        module.addDynamicSettings(RefreshCoalescer.INDEX_REFRESH_WINDOW);
+    }
+
+    public void onModule(ActionModule module) {
+        module.registerAction(PartialUpdateAction.INSTANCE, TransportPartialUpdateAction.class);
+        module.registerAction(BulkPartialUpdateAction.INSTANCE, TransportBulkPartialUpdateAction.class);
+    }
+
     public void onModule(RestModule module) {
         module.addRestAction(PartialUpdateRestAction.class);
+        module.addRestAction(BulkPartialUpdateRestAction.class);
+        module.addRestAction(PartialUpdateByQueryRestAction.class);
+        module.addRestAction(PartialUpdateByQueryJobsRestAction.class);
+        module.addRestAction(PartialUpdateStatsRestAction.class);
     }
 }
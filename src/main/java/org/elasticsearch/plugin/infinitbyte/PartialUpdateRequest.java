@@ -0,0 +1,303 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.WriteConsistencyLevel;
+import org.elasticsearch.action.support.replication.ReplicationType;
+import org.elasticsearch.action.support.single.instance.InstanceShardOperationRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.search.fetch.source.FetchSourceContext;
+
+import java.io.IOException;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+/**
+ * A request to merge a partial document into an existing document.
+ */
+public class PartialUpdateRequest extends InstanceShardOperationRequest<PartialUpdateRequest> {
+
+    private String type;
+    private String id;
+    private String routing;
+    private String parent;
+
+    private String arrayMerge = "replace";
+    private int arrayCap = 0;
+    private boolean dottedPaths = false;
+    private BytesReference doc;
+
+    private int retryOnConflict = 0;
+    private boolean touchTimestamp = true;
+    private FetchSourceContext fetchSource;
+
+    private boolean refresh = false;
+    private long version = Versions.MATCH_ANY;
+    private VersionType versionType = VersionType.INTERNAL;
+    private ReplicationType replicationType = ReplicationType.DEFAULT;
+    private WriteConsistencyLevel consistencyLevel = WriteConsistencyLevel.DEFAULT;
+
+    public PartialUpdateRequest() {
+    }
+
+    public PartialUpdateRequest(String index, String type, String id) {
+        this.index = index;
+        this.type = type;
+        this.id = id;
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        ActionRequestValidationException validationException = super.validate();
+        if (type == null) {
+            validationException = addValidationError("type is missing", validationException);
+        }
+        if (id == null) {
+            validationException = addValidationError("id is missing", validationException);
+        }
+        if (arrayCap < 0) {
+            validationException = addValidationError("array_cap must not be negative", validationException);
+        }
+        if (retryOnConflict < 0) {
+            validationException = addValidationError("retry_on_conflict must not be negative", validationException);
+        }
+        if (doc == null || doc.length() == 0) {
+            validationException = addValidationError("pending changes is missing", validationException);
+        }
+        return validationException;
+    }
+
+    public String type() {
+        return type;
+    }
+
+    public PartialUpdateRequest type(String type) {
+        this.type = type;
+        return this;
+    }
+
+    public String id() {
+        return id;
+    }
+
+    public PartialUpdateRequest id(String id) {
+        this.id = id;
+        return this;
+    }
+
+    public String routing() {
+        return routing;
+    }
+
+    public PartialUpdateRequest routing(String routing) {
+        if (routing != null && routing.length() == 0) {
+            this.routing = null;
+        } else {
+            this.routing = routing;
+        }
+        return this;
+    }
+
+    public String parent() {
+        return parent;
+    }
+
+    /**
+     * The parent id, also used as the routing value when no explicit routing is set.
+     */
+    public PartialUpdateRequest parent(String parent) {
+        this.parent = parent;
+        if (routing == null) {
+            routing = parent;
+        }
+        return this;
+    }
+
+    public int shardId() {
+        return this.shardId;
+    }
+
+    public String arrayMerge() {
+        return arrayMerge;
+    }
+
+    /**
+     * How array fields are merged: <tt>replace</tt> (default), <tt>append</tt>, <tt>remove</tt>,
+     * <tt>add_to_set</tt> or <tt>union</tt>.
+     */
+    public PartialUpdateRequest arrayMerge(String arrayMerge) {
+        this.arrayMerge = arrayMerge == null ? "replace" : arrayMerge;
+        return this;
+    }
+
+    public int arrayCap() {
+        return arrayCap;
+    }
+
+    /**
+     * Keep only the last <tt>arrayCap</tt> elements of an array after an <tt>append</tt>, 0 (default) for no limit.
+     */
+    public PartialUpdateRequest arrayCap(int arrayCap) {
+        this.arrayCap = arrayCap;
+        return this;
+    }
+
+    public boolean dottedPaths() {
+        return dottedPaths;
+    }
+
+    /**
+     * Whether a key of the pending changes with dots addresses a nested field, <tt>false</tt> (default)
+     * to take it as a field name. A JSON pointer key is a path either way.
+     */
+    public PartialUpdateRequest dottedPaths(boolean dottedPaths) {
+        this.dottedPaths = dottedPaths;
+        return this;
+    }
+
+    public BytesReference doc() {
+        return doc;
+    }
+
+    /**
+     * The pending changes, in any supported xcontent format.
+     */
+    public PartialUpdateRequest doc(BytesReference doc) {
+        this.doc = doc;
+        return this;
+    }
+
+    public int retryOnConflict() {
+        return retryOnConflict;
+    }
+
+    /**
+     * How many times the read-merge-write cycle is retried when the document is changed
+     * concurrently. Defaults to 0, and is ignored when an explicit version is requested.
+     */
+    public PartialUpdateRequest retryOnConflict(int retryOnConflict) {
+        this.retryOnConflict = retryOnConflict;
+        return this;
+    }
+
+    public boolean touchTimestamp() {
+        return touchTimestamp;
+    }
+
+    /**
+     * Whether {@link PartialUpdateHelper#LAST_PARTIAL_UPDATED} is set to the time of the update,
+     * defaults to <tt>true</tt>. Either way an update that changes no field is not written.
+     */
+    public PartialUpdateRequest touchTimestamp(boolean touchTimestamp) {
+        this.touchTimestamp = touchTimestamp;
+        return this;
+    }
+
+    public FetchSourceContext fetchSource() {
+        return fetchSource;
+    }
+
+    /**
+     * Which part of the updated document is returned with the response, <tt>null</tt> (default) for none.
+     * It is taken from the merged source, the document is not read again.
+     */
+    public PartialUpdateRequest fetchSource(FetchSourceContext fetchSource) {
+        this.fetchSource = fetchSource;
+        return this;
+    }
+
+    public boolean refresh() {
+        return refresh;
+    }
+
+    public PartialUpdateRequest refresh(boolean refresh) {
+        this.refresh = refresh;
+        return this;
+    }
+
+    public long version() {
+        return version;
+    }
+
+    public PartialUpdateRequest version(long version) {
+        this.version = version;
+        return this;
+    }
+
+    public VersionType versionType() {
+        return versionType;
+    }
+
+    public PartialUpdateRequest versionType(VersionType versionType) {
+        this.versionType = versionType;
+        return this;
+    }
+
+    public ReplicationType replicationType() {
+        return replicationType;
+    }
+
+    public PartialUpdateRequest replicationType(ReplicationType replicationType) {
+        this.replicationType = replicationType;
+        return this;
+    }
+
+    public WriteConsistencyLevel consistencyLevel() {
+        return consistencyLevel;
+    }
+
+    public PartialUpdateRequest consistencyLevel(WriteConsistencyLevel consistencyLevel) {
+        this.consistencyLevel = consistencyLevel;
+        return this;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        replicationType = ReplicationType.fromId(in.readByte());
+        consistencyLevel = WriteConsistencyLevel.fromId(in.readByte());
+        type = in.readSharedString();
+        id = in.readString();
+        routing = in.readOptionalString();
+        parent = in.readOptionalString();
+        arrayMerge = in.readString();
+        arrayCap = in.readVInt();
+        dottedPaths = in.readBoolean();
+        doc = in.readBytesReference();
+        retryOnConflict = in.readVInt();
+        touchTimestamp = in.readBoolean();
+        fetchSource = FetchSourceContext.optionalReadFromStream(in);
+        refresh = in.readBoolean();
+        version = in.readLong();
+        versionType = VersionType.fromValue(in.readByte());
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeByte(replicationType.id());
+        out.writeByte(consistencyLevel.id());
+        out.writeSharedString(type);
+        out.writeString(id);
+        out.writeOptionalString(routing);
+        out.writeOptionalString(parent);
+        out.writeString(arrayMerge);
+        out.writeVInt(arrayCap);
+        out.writeBoolean(dottedPaths);
+        out.writeBytesReference(doc);
+        out.writeVInt(retryOnConflict);
+        out.writeBoolean(touchTimestamp);
+        FetchSourceContext.optionalWriteToStream(fetchSource, out);
+        out.writeBoolean(refresh);
+        out.writeLong(version);
+        out.writeByte(versionType.getValue());
+    }
+
+    @Override
+    public String toString() {
+        return "partial_update {[" + index + "][" + type + "][" + id + "], array_merge[" + arrayMerge + "]}";
+    }
+}
@@ -0,0 +1,131 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.WriteConsistencyLevel;
+import org.elasticsearch.action.support.replication.ReplicationType;
+import org.elasticsearch.action.support.single.instance.InstanceShardOperationRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.internal.InternalClient;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.search.fetch.source.FetchSourceContext;
+
+/**
+ * Builder for {@link PartialUpdateRequest}.
+ */
+public class PartialUpdateRequestBuilder extends InstanceShardOperationRequestBuilder<PartialUpdateRequest, PartialUpdateResponse, PartialUpdateRequestBuilder> {
+
+    public PartialUpdateRequestBuilder(Client client) {
+        super((InternalClient) client, new PartialUpdateRequest());
+    }
+
+    public PartialUpdateRequestBuilder(Client client, String index, String type, String id) {
+        super((InternalClient) client, new PartialUpdateRequest(index, type, id));
+    }
+
+    public PartialUpdateRequestBuilder setType(String type) {
+        request.type(type);
+        return this;
+    }
+
+    public PartialUpdateRequestBuilder setId(String id) {
+        request.id(id);
+        return this;
+    }
+
+    public PartialUpdateRequestBuilder setRouting(String routing) {
+        request.routing(routing);
+        return this;
+    }
+
+    public PartialUpdateRequestBuilder setParent(String parent) {
+        request.parent(parent);
+        return this;
+    }
+
+    public PartialUpdateRequestBuilder setArrayMerge(String arrayMerge) {
+        request.arrayMerge(arrayMerge);
+        return this;
+    }
+
+    public PartialUpdateRequestBuilder setArrayCap(int arrayCap) {
+        request.arrayCap(arrayCap);
+        return this;
+    }
+
+    public PartialUpdateRequestBuilder setDottedPaths(boolean dottedPaths) {
+        request.dottedPaths(dottedPaths);
+        return this;
+    }
+
+    public PartialUpdateRequestBuilder setDoc(BytesReference doc) {
+        request.doc(doc);
+        return this;
+    }
+
+    public PartialUpdateRequestBuilder setDoc(String doc) {
+        request.doc(new BytesArray(doc));
+        return this;
+    }
+
+    public PartialUpdateRequestBuilder setRetryOnConflict(int retryOnConflict) {
+        request.retryOnConflict(retryOnConflict);
+        return this;
+    }
+
+    public PartialUpdateRequestBuilder setTouchTimestamp(boolean touchTimestamp) {
+        request.touchTimestamp(touchTimestamp);
+        return this;
+    }
+
+    /**
+     * Returns the whole updated document with the response.
+     */
+    public PartialUpdateRequestBuilder setFetchSource(boolean fetchSource) {
+        request.fetchSource(fetchSource ? FetchSourceContext.FETCH_SOURCE : null);
+        return this;
+    }
+
+    /**
+     * Returns the fields of the updated document that match <tt>includes</tt> and none of <tt>excludes</tt>.
+     */
+    public PartialUpdateRequestBuilder setFetchSource(String[] includes, String[] excludes) {
+        request.fetchSource(new FetchSourceContext(includes, excludes));
+        return this;
+    }
+
+    public PartialUpdateRequestBuilder setFields(String... fields) {
+        return setFetchSource(fields, null);
+    }
+
+    public PartialUpdateRequestBuilder setRefresh(boolean refresh) {
+        request.refresh(refresh);
+        return this;
+    }
+
+    public PartialUpdateRequestBuilder setVersion(long version) {
+        request.version(version);
+        return this;
+    }
+
+    public PartialUpdateRequestBuilder setVersionType(VersionType versionType) {
+        request.versionType(versionType);
+        return this;
+    }
+
+    public PartialUpdateRequestBuilder setReplicationType(ReplicationType replicationType) {
+        request.replicationType(replicationType);
+        return this;
+    }
+
+    public PartialUpdateRequestBuilder setConsistencyLevel(WriteConsistencyLevel consistencyLevel) {
+        request.consistencyLevel(consistencyLevel);
+        return this;
+    }
+
+    @Override
+    protected void doExecute(ActionListener<PartialUpdateResponse> listener) {
+        ((Client) client).execute(PartialUpdateAction.INSTANCE, request, listener);
+    }
+}
@@ -0,0 +1,119 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+/**
+ * The result of a {@link PartialUpdateRequest}.
+ */
+public class PartialUpdateResponse extends ActionResponse {
+
+    private String index;
+    private String type;
+    private String id;
+    private long version;
+    private boolean created;
+    private int retries;
+    private boolean noop;
+    private BytesReference source;
+
+    public PartialUpdateResponse() {
+    }
+
+    public PartialUpdateResponse(String index, String type, String id, long version, boolean created, int retries) {
+        this(index, type, id, version, created, retries, false);
+    }
+
+    public PartialUpdateResponse(String index, String type, String id, long version, boolean created, int retries, boolean noop) {
+        this.index = index;
+        this.type = type;
+        this.id = id;
+        this.version = version;
+        this.created = created;
+        this.retries = retries;
+        this.noop = noop;
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isCreated() {
+        return created;
+    }
+
+    /**
+     * How many times the update was retried because of version conflicts.
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Whether the update left the document as it was, so it was not written and kept its version.
+     */
+    public boolean isNoop() {
+        return noop;
+    }
+
+    /**
+     * The updated document, or the requested fields of it, <tt>null</tt> unless the request asked for it.
+     */
+    public BytesReference getSource() {
+        return source;
+    }
+
+    PartialUpdateResponse source(BytesReference source) {
+        this.source = source;
+        return this;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        index = in.readSharedString();
+        type = in.readSharedString();
+        id = in.readString();
+        version = in.readLong();
+        created = in.readBoolean();
+        retries = in.readVInt();
+        noop = in.readBoolean();
+        if (in.readBoolean()) {
+            source = in.readBytesReference();
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeSharedString(index);
+        out.writeSharedString(type);
+        out.writeString(id);
+        out.writeLong(version);
+        out.writeBoolean(created);
+        out.writeVInt(retries);
+        out.writeBoolean(noop);
+        if (source == null) {
+            out.writeBoolean(false);
+        } else {
+            out.writeBoolean(true);
+            out.writeBytesReference(source);
+        }
+    }
+}
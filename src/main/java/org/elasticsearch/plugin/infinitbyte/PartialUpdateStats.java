@@ -0,0 +1,246 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Node level partial update metrics, kept per index and array merge mode, updates written with
+ * {@link UpdatePlan update operators} under their own <tt>operators</tt> mode. Each node records the
+ * work it did itself: the phases of a single update are recorded on the node holding the primary
+ * shard, bulk and by query updates on the node that received them. The stats of an index are dropped
+ * when it is deleted, see {@link PartialUpdateIndicesListener}.
+ */
+public class PartialUpdateStats extends AbstractComponent {
+
+    public static final String MODE_OPERATORS = "operators";
+
+    public enum Phase {
+        /** parsing the pending changes */
+        PARSE,
+        /** reading the current document */
+        GET,
+        /** the single pass merge of the source token stream into the new source, writing it included */
+        MERGE,
+        /** writing the merged document */
+        INDEX,
+        /** the whole update, from receiving it on the shard to the index response */
+        TOTAL;
+
+        final XContentBuilderString fieldName = new XContentBuilderString(name().toLowerCase(Locale.ROOT));
+    }
+
+    private final ConcurrentMap<String, ConcurrentMap<String, Stats>> indices = ConcurrentCollections.newConcurrentMap();
+
+    @Inject
+    public PartialUpdateStats(Settings settings) {
+        super(settings);
+    }
+
+    /**
+     * The stats of an index and mode, created on first use. The mode is an array merge mode or {@link #MODE_OPERATORS}.
+     */
+    public Stats stats(String index, String mode) {
+        if (!MODE_OPERATORS.equals(mode) && !XContentSourceMerger.isArrayMerge(mode)) {
+            mode = XContentSourceMerger.MERGE_REPLACE;
+        }
+        ConcurrentMap<String, Stats> modes = indices.get(index);
+        if (modes == null) {
+            ConcurrentMap<String, Stats> newModes = ConcurrentCollections.newConcurrentMap();
+            modes = indices.putIfAbsent(index, newModes);
+            if (modes == null) {
+                modes = newModes;
+            }
+        }
+        Stats stats = modes.get(mode);
+        if (stats == null) {
+            Stats newStats = new Stats();
+            stats = modes.putIfAbsent(mode, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    public Stats stats(PartialUpdateRequest request) {
+        return stats(request.index(), mode(request));
+    }
+
+    /**
+     * The mode the updates of a request are recorded under.
+     */
+    public static String mode(PartialUpdateRequest request) {
+        return UpdatePlan.isOperatorPatch(request.doc()) ? MODE_OPERATORS : request.arrayMerge();
+    }
+
+    /**
+     * Like {@link #mode(PartialUpdateRequest)}, with the pending changes of the request already parsed.
+     */
+    public static String mode(PartialUpdateRequest request, Map<String, Object> pending) {
+        return UpdatePlan.isOperatorPatch(pending) ? MODE_OPERATORS : request.arrayMerge();
+    }
+
+    /**
+     * Drops the stats of an index, returns whether there were any.
+     */
+    public boolean remove(String index) {
+        return indices.remove(index) != null;
+    }
+
+    /**
+     * Renders the totals of the node, then the stats of every index and mode.
+     */
+    public void toXContent(XContentBuilder builder, ToXContent.Params params) throws IOException {
+        Stats total = new Stats();
+        for (Map<String, Stats> modes : indices.values()) {
+            for (Stats stats : modes.values()) {
+                total.add(stats);
+            }
+        }
+        builder.startObject(Fields.TOTAL);
+        total.toXContent(builder, params);
+        builder.endObject();
+
+        builder.startObject(Fields.INDICES);
+        for (Map.Entry<String, ConcurrentMap<String, Stats>> index : indices.entrySet()) {
+            builder.startObject(index.getKey());
+            Stats indexTotal = new Stats();
+            for (Stats stats : index.getValue().values()) {
+                indexTotal.add(stats);
+            }
+            builder.startObject(Fields.TOTAL);
+            indexTotal.toXContent(builder, params);
+            builder.endObject();
+            builder.startObject(Fields.MODES);
+            for (Map.Entry<String, Stats> mode : index.getValue().entrySet()) {
+                builder.startObject(mode.getKey());
+                mode.getValue().toXContent(builder, params);
+                builder.endObject();
+            }
+            builder.endObject();
+            builder.endObject();
+        }
+        builder.endObject();
+    }
+
+    public static class Stats implements ToXContent {
+
+        private final LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+
+        final CounterMetric updates = new CounterMetric();
+        final CounterMetric failures = new CounterMetric();
+        final CounterMetric notFound = new CounterMetric();
+        final CounterMetric emptyPatch = new CounterMetric();
+        final CounterMetric coalesced = new CounterMetric();
+        final CounterMetric noops = new CounterMetric();
+        final CounterMetric versionConflicts = new CounterMetric();
+        final CounterMetric bytesRead = new CounterMetric();
+        final CounterMetric bytesWritten = new CounterMetric();
+
+        Stats() {
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new LatencyHistogram();
+            }
+        }
+
+        public void phase(Phase phase, long startNanos) {
+            phases[phase.ordinal()].recordNanos(System.nanoTime() - startNanos);
+        }
+
+        public void updated() {
+            updates.inc();
+        }
+
+        public void failed() {
+            failures.inc();
+        }
+
+        public void notFound() {
+            notFound.inc();
+        }
+
+        public void emptyPatch() {
+            emptyPatch.inc();
+        }
+
+        public void noop() {
+            noops.inc();
+        }
+
+        public void coalesced() {
+            coalesced.inc();
+        }
+
+        public void versionConflict() {
+            versionConflicts.inc();
+        }
+
+        public void bytes(long read, long written) {
+            bytesRead.inc(read);
+            bytesWritten.inc(written);
+        }
+
+        void add(Stats other) {
+            for (int i = 0; i < phases.length; i++) {
+                phases[i].add(other.phases[i]);
+            }
+            updates.inc(other.updates.count());
+            failures.inc(other.failures.count());
+            notFound.inc(other.notFound.count());
+            emptyPatch.inc(other.emptyPatch.count());
+            coalesced.inc(other.coalesced.count());
+            noops.inc(other.noops.count());
+            versionConflicts.inc(other.versionConflicts.count());
+            bytesRead.inc(other.bytesRead.count());
+            bytesWritten.inc(other.bytesWritten.count());
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field(Fields.UPDATES, updates.count());
+            builder.field(Fields.NOOPS, noops.count());
+            builder.field(Fields.FAILURES, failures.count());
+            builder.field(Fields.NOT_FOUND, notFound.count());
+            builder.field(Fields.EMPTY_PATCH, emptyPatch.count());
+            builder.field(Fields.COALESCED, coalesced.count());
+            builder.field(Fields.VERSION_CONFLICTS, versionConflicts.count());
+            builder.field(Fields.BYTES_READ, bytesRead.count());
+            builder.field(Fields.BYTES_WRITTEN, bytesWritten.count());
+            builder.startObject(Fields.PHASES);
+            for (Phase phase : Phase.values()) {
+                builder.startObject(phase.fieldName);
+                phases[phase.ordinal()].toXContent(builder, params);
+                builder.endObject();
+            }
+            builder.endObject();
+            return builder;
+        }
+    }
+
+    static final class Fields {
+        static final XContentBuilderString TOTAL = new XContentBuilderString("total");
+        static final XContentBuilderString INDICES = new XContentBuilderString("indices");
+        static final XContentBuilderString MODES = new XContentBuilderString("modes");
+        static final XContentBuilderString PHASES = new XContentBuilderString("phases");
+        static final XContentBuilderString UPDATES = new XContentBuilderString("updates");
+        static final XContentBuilderString NOOPS = new XContentBuilderString("noops");
+        static final XContentBuilderString FAILURES = new XContentBuilderString("failures");
+        static final XContentBuilderString NOT_FOUND = new XContentBuilderString("not_found");
+        static final XContentBuilderString EMPTY_PATCH = new XContentBuilderString("empty_patch");
+        static final XContentBuilderString COALESCED = new XContentBuilderString("coalesced");
+        static final XContentBuilderString VERSION_CONFLICTS = new XContentBuilderString("version_conflicts");
+        static final XContentBuilderString BYTES_READ = new XContentBuilderString("bytes_read");
+        static final XContentBuilderString BYTES_WRITTEN = new XContentBuilderString("bytes_written");
+    }
+}
@@ -0,0 +1,53 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.*;
+import org.elasticsearch.rest.action.support.RestXContentBuilder;
+
+import java.io.IOException;
+
+import static org.elasticsearch.rest.RestStatus.OK;
+
+/**
+ * Exposes the partial update metrics of the node that receives the request, see {@link PartialUpdateStats}.
+ */
+public class PartialUpdateStatsRestAction extends BaseRestHandler {
+
+    private final PartialUpdateStats partialUpdateStats;
+    private final SourceCache sourceCache;
+    private final RefreshCoalescer refreshCoalescer;
+
+    @Inject
+    public PartialUpdateStatsRestAction(Settings settings, Client client,
+                                        RestController restController, PartialUpdateStats partialUpdateStats,
+                                        SourceCache sourceCache, RefreshCoalescer refreshCoalescer) {
+        super(settings, client);
+        this.partialUpdateStats = partialUpdateStats;
+        this.sourceCache = sourceCache;
+        this.refreshCoalescer = refreshCoalescer;
+        restController.registerHandler(RestRequest.Method.GET, "/_partial_update/_stats", this);
+    }
+
+    public void handleRequest(final RestRequest request,
+                              final RestChannel channel) {
+        try {
+            XContentBuilder builder = RestXContentBuilder.restContentBuilder(request);
+            builder.startObject();
+            builder.field("node", settings.get("name"));
+            partialUpdateStats.toXContent(builder, request);
+            sourceCache.toXContent(builder, request);
+            refreshCoalescer.toXContent(builder, request);
+            builder.endObject();
+            channel.sendResponse(new XContentRestResponse(request, OK, builder));
+        } catch (Throwable e) {
+            try {
+                channel.sendResponse(new XContentThrowableRestResponse(request, e));
+            } catch (IOException e1) {
+                logger.error("failed to send failure response", e1);
+            }
+        }
+    }
+}
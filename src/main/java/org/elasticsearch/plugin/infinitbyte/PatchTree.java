@@ -0,0 +1,94 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.collect.Maps;
+
+import java.util.Map;
+
+/**
+ * The pending changes arranged by path. Top level keys of the pending changes may address a field
+ * nested in objects as a JSON pointer (<tt>/profile/address/city</tt>), or with dots
+ * (<tt>stats.daily.views</tt>) when the request asks for dotted paths; otherwise a key with dots is
+ * the name of a top level field. Each level of the tree maps a field name to either the new value
+ * of that field, or to the {@link PatchTree} of the changes below it.
+ */
+final class PatchTree {
+
+    private final Map<String, Object> entries = Maps.newLinkedHashMap();
+
+    private PatchTree() {
+    }
+
+    static PatchTree build(Map<String, Object> pending, boolean dottedPaths) {
+        PatchTree root = new PatchTree();
+        for (Map.Entry<String, Object> entry : pending.entrySet()) {
+            root.put(path(entry.getKey(), dottedPaths), 0, entry.getKey(), entry.getValue());
+        }
+        return root;
+    }
+
+    /**
+     * The field names on the path of a key, a single name if the key is not a path.
+     *
+     * @param dottedPaths whether a key with dots is a path too
+     */
+    static String[] path(String key, boolean dottedPaths) {
+        if (key.length() > 1 && key.charAt(0) == '/') {
+            String[] segments = Strings.delimitedListToStringArray(key.substring(1), "/");
+            for (int i = 0; i < segments.length; i++) {
+                // JSON pointer escapes, in this order
+                segments[i] = segments[i].replace("~1", "/").replace("~0", "~");
+            }
+            return segments;
+        }
+        if (dottedPaths && key.indexOf('.') > 0 && !key.endsWith(".")) {
+            return Strings.delimitedListToStringArray(key, ".");
+        }
+        return new String[]{key};
+    }
+
+    private void put(String[] path, int level, String key, Object value) {
+        String name = path[level];
+        if (name.length() == 0) {
+            throw new ElasticsearchIllegalArgumentException("empty field name in path [" + key + "]");
+        }
+        Object current = entries.get(name);
+        if (level == path.length - 1) {
+            if (current != null || entries.containsKey(name)) {
+                throw new ElasticsearchIllegalArgumentException("path [" + key + "] conflicts with another pending change");
+            }
+            entries.put(name, value);
+            return;
+        }
+        PatchTree child;
+        if (current == null && !entries.containsKey(name)) {
+            child = new PatchTree();
+            entries.put(name, child);
+        } else if (current instanceof PatchTree) {
+            child = (PatchTree) current;
+        } else {
+            throw new ElasticsearchIllegalArgumentException("path [" + key + "] conflicts with another pending change");
+        }
+        child.put(path, level + 1, key, value);
+    }
+
+    /**
+     * Field name to either the new value or a {@link PatchTree}, in the order the changes were given.
+     */
+    Map<String, Object> entries() {
+        return entries;
+    }
+
+    boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    Object get(String name) {
+        return entries.get(name);
+    }
+
+    int size() {
+        return entries.size();
+    }
+}
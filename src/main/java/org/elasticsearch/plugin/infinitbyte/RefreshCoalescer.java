@@ -0,0 +1,151 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.refresh.RefreshResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lets updates that ask for <tt>refresh=true</tt> share one refresh of their index. The first such update
+ * opens a window of <tt>index.partial_update.refresh_window</tt> (node default
+ * <tt>partial_update.refresh_window</tt>, 0 to refresh every update as before); updates written within
+ * it wait for a single refresh at its end and are answered after it. Updates written while that refresh
+ * runs open the next window, since the refresh may not cover them. Noops wait the same way, they may have
+ * read a write that no refresh covers yet.
+ * <p/>
+ * Only single updates through the REST API take part. A bulk partial update refreshes once for the whole
+ * bulk, and a {@link PartialUpdateRequest} sent with the Java client refreshes with its own index request.
+ */
+public class RefreshCoalescer extends AbstractComponent {
+
+    public static final String INDEX_REFRESH_WINDOW = "index.partial_update.refresh_window";
+
+    private final Client client;
+    private final ClusterService clusterService;
+    private final ThreadPool threadPool;
+    private final TimeValue defaultWindow;
+
+    private final Map<String, List<Runnable>> windows = Maps.newHashMap();
+    private final CounterMetric requests = new CounterMetric();
+    private final CounterMetric refreshes = new CounterMetric();
+    private final CounterMetric failures = new CounterMetric();
+
+    @Inject
+    public RefreshCoalescer(Settings settings, Client client, ClusterService clusterService, ThreadPool threadPool) {
+        super(settings);
+        this.client = client;
+        this.clusterService = clusterService;
+        this.threadPool = threadPool;
+        this.defaultWindow = settings.getAsTime("partial_update.refresh_window", TimeValue.timeValueMillis(0));
+    }
+
+    /**
+     * The refresh window of the index, <tt>null</tt> if updates of the index refresh on their own.
+     */
+    public TimeValue window(String index) {
+        MetaData metaData = clusterService.state().metaData();
+        IndexMetaData indexMetaData;
+        try {
+            indexMetaData = metaData.index(metaData.concreteIndex(index));
+        } catch (Exception e) {
+            // a missing index fails the update itself
+            return null;
+        }
+        if (indexMetaData == null) {
+            return null;
+        }
+        TimeValue window = indexMetaData.settings().getAsTime(INDEX_REFRESH_WINDOW, defaultWindow);
+        return window.millis() > 0 ? window : null;
+    }
+
+    /**
+     * Runs <tt>listener</tt> once a refresh of <tt>index</tt> started after this call finished.
+     */
+    public void afterRefresh(final String index, TimeValue window, Runnable listener) {
+        requests.inc();
+        synchronized (this) {
+            List<Runnable> waiting = windows.get(index);
+            if (waiting != null) {
+                waiting.add(listener);
+                return;
+            }
+            waiting = Lists.newArrayList();
+            waiting.add(listener);
+            windows.put(index, waiting);
+        }
+        threadPool.schedule(window, ThreadPool.Names.GENERIC, new Runnable() {
+            @Override
+            public void run() {
+                refresh(index);
+            }
+        });
+    }
+
+    private void refresh(final String index) {
+        final List<Runnable> waiting;
+        synchronized (this) {
+            waiting = windows.remove(index);
+        }
+        refreshes.inc();
+        client.admin().indices().prepareRefresh(index).execute(new ActionListener<RefreshResponse>() {
+            @Override
+            public void onResponse(RefreshResponse response) {
+                if (response.getFailedShards() > 0) {
+                    failures.inc();
+                    logger.debug("shared refresh of [{}] failed on [{}] shards", index, response.getFailedShards());
+                }
+                notify(waiting);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                // the updates are written, they are answered anyway
+                failures.inc();
+                logger.warn("shared refresh of [{}] failed", e, index);
+                notify(waiting);
+            }
+        });
+    }
+
+    private void notify(List<Runnable> waiting) {
+        for (Runnable listener : waiting) {
+            try {
+                listener.run();
+            } catch (Throwable e) {
+                logger.warn("failed to answer update after refresh", e);
+            }
+        }
+    }
+
+    public void toXContent(XContentBuilder builder, ToXContent.Params params) throws IOException {
+        builder.startObject(Fields.REFRESH);
+        builder.field(Fields.REQUESTS, requests.count());
+        builder.field(Fields.REFRESHES, refreshes.count());
+        builder.field(Fields.FAILURES, failures.count());
+        builder.endObject();
+    }
+
+    static final class Fields {
+        static final XContentBuilderString REFRESH = new XContentBuilderString("coalesced_refresh");
+        static final XContentBuilderString REQUESTS = new XContentBuilderString("requests");
+        static final XContentBuilderString REFRESHES = new XContentBuilderString("refreshes");
+        static final XContentBuilderString FAILURES = new XContentBuilderString("failures");
+    }
+}
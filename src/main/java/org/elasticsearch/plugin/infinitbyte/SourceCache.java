@@ -0,0 +1,242 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.RemovalListener;
+import org.elasticsearch.common.cache.RemovalNotification;
+import org.elasticsearch.common.cache.Weigher;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.index.shard.service.IndexShard;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The last source this node wrote for a document, with its version. A shard that updates the same
+ * documents over and over can then check the current version with a lookup that does not load the
+ * source, and merge into the cached copy if nothing else wrote the document meanwhile.
+ * <p/>
+ * Entries are kept per shard and index uuid, so a recreated index never sees the sources of the
+ * deleted one. A document deleted on a shard is dropped, as its versions may start over, and all
+ * entries of a shard are dropped once it is closed on this node, see {@link PartialUpdateIndicesListener}.
+ * <p/>
+ * Disabled by default, <tt>partial_update.source_cache.size</tt> sets the maximum size of the cached
+ * sources, e.g. <tt>64mb</tt>. Least recently used sources are evicted first.
+ */
+public class SourceCache extends AbstractComponent {
+
+    private final Cache<Key, Entry> cache;
+    private final long maxSizeInBytes;
+
+    private final AtomicLong sizeInBytes = new AtomicLong();
+    private final CounterMetric hits = new CounterMetric();
+    private final CounterMetric misses = new CounterMetric();
+    private final CounterMetric stale = new CounterMetric();
+    private final CounterMetric evictions = new CounterMetric();
+
+    @Inject
+    public SourceCache(Settings settings) {
+        super(settings);
+        this.maxSizeInBytes = settings.getAsBytesSize("partial_update.source_cache.size", new ByteSizeValue(0)).bytes();
+        if (maxSizeInBytes <= 0) {
+            this.cache = null;
+            return;
+        }
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxSizeInBytes)
+                .weigher(new Weigher<Key, Entry>() {
+                    @Override
+                    public int weigh(Key key, Entry entry) {
+                        return entry.weight();
+                    }
+                })
+                .removalListener(new RemovalListener<Key, Entry>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<Key, Entry> notification) {
+                        sizeInBytes.addAndGet(-notification.getValue().weight());
+                        if (notification.wasEvicted()) {
+                            evictions.inc();
+                        }
+                    }
+                })
+                .build();
+    }
+
+    public boolean enabled() {
+        return cache != null;
+    }
+
+    /**
+     * The cached source of the document, <tt>null</tt> if there is none. A cached source still has to be
+     * checked against the current version, see {@link #hit} and {@link #stale}.
+     */
+    public Entry get(IndexShard indexShard, PartialUpdateRequest request) {
+        if (cache == null) {
+            return null;
+        }
+        Entry entry = cache.getIfPresent(new Key(indexShard, request.type(), request.id()));
+        if (entry == null) {
+            misses.inc();
+        }
+        return entry;
+    }
+
+    /**
+     * The cached source was still current and is used.
+     */
+    public void hit() {
+        hits.inc();
+    }
+
+    /**
+     * The document changed since the source was cached, drops it.
+     */
+    public void stale(IndexShard indexShard, PartialUpdateRequest request) {
+        stale.inc();
+        cache.invalidate(new Key(indexShard, request.type(), request.id()));
+    }
+
+    public void put(IndexShard indexShard, PartialUpdateRequest request, BytesReference source, long version) {
+        if (cache == null) {
+            return;
+        }
+        Entry entry = new Entry(source, version);
+        sizeInBytes.addAndGet(entry.weight());
+        cache.put(new Key(indexShard, request.type(), request.id()), entry);
+    }
+
+    /**
+     * The document was deleted, drops its source.
+     */
+    public void deleted(IndexShard indexShard, String type, String id) {
+        if (cache == null) {
+            return;
+        }
+        cache.invalidate(new Key(indexShard, type, id));
+    }
+
+    /**
+     * Drops the sources of a shard.
+     */
+    public void clear(ShardId shardId) {
+        if (cache == null) {
+            return;
+        }
+        Iterator<Key> it = cache.asMap().keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().shardId.equals(shardId)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops the sources of all shards of an index.
+     */
+    public void clear(String index) {
+        if (cache == null) {
+            return;
+        }
+        Iterator<Key> it = cache.asMap().keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().shardId.index().name().equals(index)) {
+                it.remove();
+            }
+        }
+    }
+
+    public void toXContent(XContentBuilder builder, ToXContent.Params params) throws IOException {
+        builder.startObject(Fields.SOURCE_CACHE);
+        builder.field(Fields.ENABLED, enabled());
+        builder.byteSizeField(Fields.MAX_SIZE_IN_BYTES, Fields.MAX_SIZE, maxSizeInBytes);
+        builder.byteSizeField(Fields.SIZE_IN_BYTES, Fields.SIZE, sizeInBytes.get());
+        builder.field(Fields.ENTRIES, cache == null ? 0 : cache.size());
+        builder.field(Fields.HITS, hits.count());
+        builder.field(Fields.MISSES, misses.count());
+        builder.field(Fields.STALE, stale.count());
+        builder.field(Fields.EVICTIONS, evictions.count());
+        builder.endObject();
+    }
+
+    public static class Entry {
+        private final BytesReference source;
+        private final long version;
+
+        Entry(BytesReference source, long version) {
+            // the merged source may be backed by a larger recycled buffer, keep only its bytes
+            this.source = source.copyBytesArray();
+            this.version = version;
+        }
+
+        public BytesReference source() {
+            return source;
+        }
+
+        public long version() {
+            return version;
+        }
+
+        int weight() {
+            return source.length();
+        }
+    }
+
+    /**
+     * A document of a shard, type and id are unique within a shard whatever the routing.
+     */
+    static final class Key {
+        final ShardId shardId;
+        final String indexUUID;
+        final String type;
+        final String id;
+
+        Key(IndexShard indexShard, String type, String id) {
+            this.shardId = indexShard.shardId();
+            this.indexUUID = indexShard.indexSettings().get(IndexMetaData.SETTING_UUID, IndexMetaData.INDEX_UUID_NA_VALUE);
+            this.type = type;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return shardId.equals(key.shardId) && indexUUID.equals(key.indexUUID) && type.equals(key.type) && id.equals(key.id);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = shardId.hashCode();
+            result = 31 * result + indexUUID.hashCode();
+            result = 31 * result + type.hashCode();
+            result = 31 * result + id.hashCode();
+            return result;
+        }
+    }
+
+    static final class Fields {
+        static final XContentBuilderString SOURCE_CACHE = new XContentBuilderString("source_cache");
+        static final XContentBuilderString ENABLED = new XContentBuilderString("enabled");
+        static final XContentBuilderString MAX_SIZE = new XContentBuilderString("max_size");
+        static final XContentBuilderString MAX_SIZE_IN_BYTES = new XContentBuilderString("max_size_in_bytes");
+        static final XContentBuilderString SIZE = new XContentBuilderString("size");
+        static final XContentBuilderString SIZE_IN_BYTES = new XContentBuilderString("size_in_bytes");
+        static final XContentBuilderString ENTRIES = new XContentBuilderString("entries");
+        static final XContentBuilderString HITS = new XContentBuilderString("hits");
+        static final XContentBuilderString MISSES = new XContentBuilderString("misses");
+        static final XContentBuilderString STALE = new XContentBuilderString("stale");
+        static final XContentBuilderString EVICTIONS = new XContentBuilderString("evictions");
+    }
+}
@@ -0,0 +1,25 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.common.bytes.BytesReference;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Merges pending changes into a stored document source. Implementations hold no per request
+ * state and are shared by all updates of a node.
+ */
+public interface SourceMerger {
+
+    /**
+     * @param source     the stored source, compressed or not
+     * @param pending    the pending changes, field name or path to new value
+     * @param dottedPaths whether a key with dots is a path rather than a field name, see {@link PatchTree}
+     * @param arrayMerge how array fields are merged
+     * @param arrayCap   the maximum length of an array after <tt>append</tt>, 0 for unbounded
+     * @param timestamp  the value of {@link PartialUpdateHelper#LAST_PARTIAL_UPDATED}, or a negative
+     *                   value to keep the stored one
+     * @return the merged document, and whether any field changed
+     */
+    MergeResult merge(BytesReference source, Map<String, Object> pending, boolean dottedPaths, String arrayMerge, int arrayCap, long timestamp) throws IOException;
+}
@@ -0,0 +1,400 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.RoutingMissingException;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.bulk.TransportBulkAction;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.get.TransportMultiGetAction;
+import org.elasticsearch.action.support.TransportAction;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.BaseTransportRequestHandler;
+import org.elasticsearch.transport.TransportChannel;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads all targets of a {@link BulkPartialUpdateRequest} with one multi get, merges them on this
+ * node and writes the results with one bulk request. Every write is checked against the version
+ * that was read, a concurrent change fails that item only.
+ * <p/>
+ * Items for the same document are applied one after the other in request order: a later item is
+ * merged into the source an earlier one produced, and written against the version that write
+ * creates. The bulk writes items of a shard in order, so they do not conflict with each other; if
+ * the earlier write fails, the later ones fail with a version conflict.
+ * <p/>
+ * Items with <tt>retry_on_conflict</tt> that lost a version conflict in the bulk write are retried as
+ * single partial updates, items of the same document one after the other in request order. Returning
+ * the updated document is not supported per item, and the {@link SourceCache} is not used, the multi
+ * get reads the sources anyway.
+ */
+public class TransportBulkPartialUpdateAction extends TransportAction<BulkPartialUpdateRequest, BulkPartialUpdateResponse> {
+
+    private final ClusterService clusterService;
+    private final TransportMultiGetAction multiGetAction;
+    private final TransportBulkAction bulkAction;
+    private final TransportPartialUpdateAction partialUpdateAction;
+    private final PartialUpdateHelper partialUpdateHelper;
+    private final PartialUpdateStats partialUpdateStats;
+
+    @Inject
+    public TransportBulkPartialUpdateAction(Settings settings, ThreadPool threadPool, TransportService transportService,
+                                            ClusterService clusterService, TransportMultiGetAction multiGetAction, TransportBulkAction bulkAction,
+                                            TransportPartialUpdateAction partialUpdateAction, PartialUpdateHelper partialUpdateHelper,
+                                            PartialUpdateStats partialUpdateStats) {
+        super(settings, threadPool);
+        this.clusterService = clusterService;
+        this.multiGetAction = multiGetAction;
+        this.bulkAction = bulkAction;
+        this.partialUpdateAction = partialUpdateAction;
+        this.partialUpdateHelper = partialUpdateHelper;
+        this.partialUpdateStats = partialUpdateStats;
+
+        transportService.registerHandler(BulkPartialUpdateAction.NAME, new TransportHandler());
+    }
+
+    @Override
+    protected void doExecute(final BulkPartialUpdateRequest request, final ActionListener<BulkPartialUpdateResponse> listener) {
+        final long startTime = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        final List<PartialUpdateRequest> requests = request.requests();
+        final BulkPartialUpdateItemResponse[] responses = new BulkPartialUpdateItemResponse[requests.size()];
+
+        // the multi get only reports a message for a failed item, so what it would fail on is checked
+        // here, to answer with the right status
+        MetaData metaData = clusterService.state().metaData();
+        MultiGetRequest multiGetRequest = new MultiGetRequest();
+        multiGetRequest.listenerThreaded(false);
+        multiGetRequest.realtime(true);
+        // request slot -> multi get slot, -1 when the item already failed
+        final int[] getSlots = new int[requests.size()];
+        int gets = 0;
+        for (int i = 0; i < requests.size(); i++) {
+            PartialUpdateRequest updateRequest = requests.get(i);
+            try {
+                String index = metaData.concreteIndex(updateRequest.index());
+                String routing = metaData.resolveIndexRouting(updateRequest.routing(), updateRequest.index());
+                if (routing == null && metaData.routingRequired(index, updateRequest.type())) {
+                    throw new RoutingMissingException(index, updateRequest.type(), updateRequest.id());
+                }
+                // like a bulk index, the item goes on with the concrete index and the routing of an alias,
+                // so stats are kept per index and two items of a document through different aliases are chained
+                updateRequest.index(index);
+                updateRequest.routing(routing);
+            } catch (Throwable e) {
+                // an index that does not resolve gets no stats, nothing would ever drop them
+                responses[i] = BulkPartialUpdateItemResponse.failure(i, updateRequest, ExceptionsHelper.status(e),
+                        ExceptionsHelper.detailedMessage(e));
+                getSlots[i] = -1;
+                continue;
+            }
+            if (updateRequest.fetchSource() != null && updateRequest.fetchSource().fetchSource()) {
+                partialUpdateStats.stats(updateRequest).failed();
+                responses[i] = BulkPartialUpdateItemResponse.failure(i, updateRequest, RestStatus.BAD_REQUEST,
+                        "returning the updated document is not supported in a bulk partial update");
+                getSlots[i] = -1;
+                continue;
+            }
+            getSlots[i] = gets++;
+            multiGetRequest.add(new MultiGetRequest.Item(updateRequest.index(), updateRequest.type(), updateRequest.id())
+                    .routing(updateRequest.routing()));
+        }
+        if (gets == 0) {
+            listener.onResponse(new BulkPartialUpdateResponse(responses, System.currentTimeMillis() - startTime));
+            return;
+        }
+
+        multiGetAction.execute(multiGetRequest, new ActionListener<MultiGetResponse>() {
+            @Override
+            public void onResponse(final MultiGetResponse multiGetResponse) {
+                // the multi get completes on whatever thread got the last shard response, merge off it
+                try {
+                    threadPool.executor(PartialUpdatePlugin.THREAD_POOL).execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                merge(request, multiGetResponse, getSlots, responses, startTime, startNanos, listener);
+                            } catch (Throwable e) {
+                                listener.onFailure(e);
+                            }
+                        }
+                    });
+                } catch (Throwable e) {
+                    listener.onFailure(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    private void merge(BulkPartialUpdateRequest request, MultiGetResponse multiGetResponse, int[] getSlots,
+                       final BulkPartialUpdateItemResponse[] responses, final long startTime, final long startNanos,
+                       final ActionListener<BulkPartialUpdateResponse> listener) {
+        final List<PartialUpdateRequest> requests = request.requests();
+        MultiGetItemResponse[] getResponses = multiGetResponse.getResponses();
+        // document -> the source and version left by the last item merged for it
+        Map<String, Merged> mergedDocs = Maps.newHashMap();
+
+        final BulkRequest bulkRequest = new BulkRequest();
+        bulkRequest.listenerThreaded(false);
+        bulkRequest.refresh(request.refresh());
+        // bulk slot -> request slot
+        final int[] slots = new int[requests.size()];
+
+        for (int i = 0; i < requests.size(); i++) {
+            if (getSlots[i] < 0) {
+                continue;
+            }
+            PartialUpdateRequest updateRequest = requests.get(i);
+            PartialUpdateStats.Stats stats = partialUpdateStats.stats(updateRequest);
+            // the multi get is shared, every item waited for all of it
+            stats.phase(PartialUpdateStats.Phase.GET, startNanos);
+            String key = key(updateRequest);
+            Merged previous = mergedDocs.get(key);
+            long version;
+            BytesReference source;
+            if (previous != null) {
+                version = previous.version;
+                source = previous.source;
+            } else {
+                MultiGetItemResponse itemResponse = getResponses[getSlots[i]];
+                if (itemResponse.isFailed()) {
+                    // the failures known up front are already answered, what is left failed on the shard
+                    stats.failed();
+                    responses[i] = BulkPartialUpdateItemResponse.failure(i, updateRequest, RestStatus.INTERNAL_SERVER_ERROR,
+                            itemResponse.getFailure().getMessage());
+                    continue;
+                }
+                GetResponse getResponse = itemResponse.getResponse();
+                if (!getResponse.isExists()) {
+                    stats.notFound();
+                    stats.failed();
+                    responses[i] = BulkPartialUpdateItemResponse.failure(i, updateRequest, RestStatus.NOT_FOUND, "document missing");
+                    continue;
+                }
+                version = getResponse.getVersion();
+                source = getResponse.isSourceEmpty() ? null : getResponse.getSourceAsBytesRef();
+            }
+            if (!PartialUpdateHelper.isExternalVersion(updateRequest) && updateRequest.version() != Versions.MATCH_ANY
+                    && updateRequest.version() != version) {
+                stats.versionConflict();
+                stats.failed();
+                responses[i] = BulkPartialUpdateItemResponse.failure(i, updateRequest, RestStatus.CONFLICT,
+                        "version conflict, current [" + version + "], provided [" + updateRequest.version() + "]");
+                continue;
+            }
+            try {
+                PartialUpdateHelper.Result result = partialUpdateHelper.prepare(updateRequest, version, source);
+                if (result.noop()) {
+                    stats.phase(PartialUpdateStats.Phase.TOTAL, startNanos);
+                    responses[i] = BulkPartialUpdateItemResponse.noop(i, updateRequest, result.version());
+                    mergedDocs.put(key, new Merged(result.version(), result.source()));
+                    continue;
+                }
+                // an internal write bumps the version by one, an external one sets the requested version
+                long written = PartialUpdateHelper.isExternalVersion(updateRequest) ? updateRequest.version() : result.version() + 1;
+                mergedDocs.put(key, new Merged(written, result.source()));
+                slots[bulkRequest.numberOfActions()] = i;
+                bulkRequest.add(result.indexRequest());
+            } catch (Throwable e) {
+                stats.failed();
+                responses[i] = BulkPartialUpdateItemResponse.failure(i, updateRequest, ExceptionsHelper.status(e),
+                        ExceptionsHelper.detailedMessage(e));
+            }
+        }
+
+        if (bulkRequest.numberOfActions() == 0) {
+            listener.onResponse(new BulkPartialUpdateResponse(responses, System.currentTimeMillis() - startTime));
+            return;
+        }
+
+        final long indexStart = System.nanoTime();
+        bulkAction.execute(bulkRequest, new ActionListener<BulkResponse>() {
+            @Override
+            public void onResponse(BulkResponse bulkResponse) {
+                List<Integer> conflicts = Lists.newArrayList();
+                BulkItemResponse[] items = bulkResponse.getItems();
+                for (int j = 0; j < items.length; j++) {
+                    BulkItemResponse item = items[j];
+                    int slot = slots[j];
+                    PartialUpdateStats.Stats stats = partialUpdateStats.stats(requests.get(slot));
+                    stats.phase(PartialUpdateStats.Phase.INDEX, indexStart);
+                    stats.phase(PartialUpdateStats.Phase.TOTAL, startNanos);
+                    if (item.isFailed()) {
+                        boolean retry = false;
+                        if (item.getFailure().getStatus() == RestStatus.CONFLICT) {
+                            stats.versionConflict();
+                            retry = retryOnConflict(requests.get(slot));
+                        }
+                        if (retry) {
+                            // the retry records how it ends
+                            conflicts.add(slot);
+                        } else {
+                            stats.failed();
+                        }
+                        responses[slot] = new BulkPartialUpdateItemResponse(slot, item.getIndex(), item.getType(), item.getId(),
+                                -1, item.getFailure().getStatus(), item.getFailureMessage());
+                    } else {
+                        stats.updated();
+                        responses[slot] = BulkPartialUpdateItemResponse.success(slot, item.getIndex(), item.getType(), item.getId(),
+                                item.getVersion());
+                    }
+                }
+                if (conflicts.isEmpty()) {
+                    listener.onResponse(new BulkPartialUpdateResponse(responses, System.currentTimeMillis() - startTime));
+                } else {
+                    retry(requests, conflicts, responses, startTime, listener);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                for (int j = 0; j < bulkRequest.numberOfActions(); j++) {
+                    partialUpdateStats.stats(requests.get(slots[j])).failed();
+                }
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    private static boolean retryOnConflict(PartialUpdateRequest request) {
+        return request.retryOnConflict() > 0 && request.version() == Versions.MATCH_ANY;
+    }
+
+    /**
+     * Retries the items that lost a version conflict as single partial updates, which retry on their own
+     * from there. The bulk write was the first attempt, so one retry less is left.
+     */
+    private void retry(List<PartialUpdateRequest> requests, List<Integer> conflicts, final BulkPartialUpdateItemResponse[] responses,
+                       final long startTime, final ActionListener<BulkPartialUpdateResponse> listener) {
+        // a later item of a document depends on the earlier ones, keep their order
+        Map<String, List<Integer>> documents = Maps.newLinkedHashMap();
+        for (int slot : conflicts) {
+            String key = key(requests.get(slot));
+            List<Integer> slots = documents.get(key);
+            if (slots == null) {
+                slots = Lists.newArrayList();
+                documents.put(key, slots);
+            }
+            slots.add(slot);
+        }
+        final AtomicInteger pending = new AtomicInteger(documents.size());
+        Runnable done = new Runnable() {
+            @Override
+            public void run() {
+                if (pending.decrementAndGet() == 0) {
+                    listener.onResponse(new BulkPartialUpdateResponse(responses, System.currentTimeMillis() - startTime));
+                }
+            }
+        };
+        for (List<Integer> slots : documents.values()) {
+            retry(requests, slots.iterator(), responses, done);
+        }
+    }
+
+    private void retry(final List<PartialUpdateRequest> requests, final Iterator<Integer> slots,
+                       final BulkPartialUpdateItemResponse[] responses, final Runnable done) {
+        if (!slots.hasNext()) {
+            done.run();
+            return;
+        }
+        final int slot = slots.next();
+        final PartialUpdateRequest updateRequest = requests.get(slot);
+        updateRequest.retryOnConflict(updateRequest.retryOnConflict() - 1);
+        updateRequest.listenerThreaded(false);
+        partialUpdateAction.execute(updateRequest, new ActionListener<PartialUpdateResponse>() {
+            @Override
+            public void onResponse(PartialUpdateResponse response) {
+                if (response.isNoop()) {
+                    responses[slot] = BulkPartialUpdateItemResponse.noop(slot, updateRequest, response.getVersion());
+                } else {
+                    responses[slot] = BulkPartialUpdateItemResponse.success(slot, response.getIndex(), response.getType(),
+                            response.getId(), response.getVersion());
+                }
+                retry(requests, slots, responses, done);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                responses[slot] = BulkPartialUpdateItemResponse.failure(slot, updateRequest, ExceptionsHelper.status(e),
+                        ExceptionsHelper.detailedMessage(e));
+                retry(requests, slots, responses, done);
+            }
+        });
+    }
+
+    private static String key(PartialUpdateRequest request) {
+        return request.index() + '/' + request.type() + '/' + request.id() + '/' + request.routing();
+    }
+
+    private static class Merged {
+        final long version;
+        final BytesReference source;
+
+        Merged(long version, BytesReference source) {
+            this.version = version;
+            this.source = source;
+        }
+    }
+
+    class TransportHandler extends BaseTransportRequestHandler<BulkPartialUpdateRequest> {
+
+        @Override
+        public BulkPartialUpdateRequest newInstance() {
+            return new BulkPartialUpdateRequest();
+        }
+
+        @Override
+        public void messageReceived(final BulkPartialUpdateRequest request, final TransportChannel channel) throws Exception {
+            // no need to use threaded listener, since we just send a response
+            request.listenerThreaded(false);
+            execute(request, new ActionListener<BulkPartialUpdateResponse>() {
+                @Override
+                public void onResponse(BulkPartialUpdateResponse result) {
+                    try {
+                        channel.sendResponse(result);
+                    } catch (Throwable e) {
+                        onFailure(e);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    try {
+                        channel.sendResponse(e);
+                    } catch (Exception e1) {
+                        logger.warn("failed to send error response for action [" + BulkPartialUpdateAction.NAME + "] and request [" + request + "]", e1);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public String executor() {
+            return ThreadPool.Names.SAME;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.RoutingMissingException;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.index.TransportIndexAction;
+import org.elasticsearch.action.support.TransportActions;
+import org.elasticsearch.action.support.single.instance.TransportInstanceSingleOperationAction;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.routing.PlainShardIterator;
+import org.elasticsearch.cluster.routing.ShardIterator;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.collect.ImmutableList;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.index.service.IndexService;
+import org.elasticsearch.index.shard.service.IndexShard;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.Random;
+
+/**
+ * Routes a {@link PartialUpdateRequest} to the primary shard of the document, where the
+ * current source is read, merged and indexed without another round trip through the client.
+ */
+public class TransportPartialUpdateAction extends TransportInstanceSingleOperationAction<PartialUpdateRequest, PartialUpdateResponse> {
+
+    private final IndicesService indicesService;
+    private final TransportIndexAction indexAction;
+    private final PartialUpdateHelper partialUpdateHelper;
+    private final PartialUpdateStats partialUpdateStats;
+
+    private final TimeValue retryBackoff;
+    private final TimeValue maxRetryBackoff;
+    private final Random random = new Random();
+
+    @Inject
+    public TransportPartialUpdateAction(Settings settings, ThreadPool threadPool, ClusterService clusterService, TransportService transportService,
+                                        IndicesService indicesService, TransportIndexAction indexAction, PartialUpdateHelper partialUpdateHelper,
+                                        PartialUpdateStats partialUpdateStats) {
+        super(settings, threadPool, clusterService, transportService);
+        this.indicesService = indicesService;
+        this.indexAction = indexAction;
+        this.partialUpdateHelper = partialUpdateHelper;
+        this.partialUpdateStats = partialUpdateStats;
+        this.retryBackoff = settings.getAsTime("partial_update.retry_backoff", TimeValue.timeValueMillis(10));
+        this.maxRetryBackoff = settings.getAsTime("partial_update.max_retry_backoff", TimeValue.timeValueSeconds(1));
+    }
+
+    @Override
+    protected String transportAction() {
+        return PartialUpdateAction.NAME;
+    }
+
+    @Override
+    protected String executor() {
+        return PartialUpdatePlugin.THREAD_POOL;
+    }
+
+    @Override
+    protected PartialUpdateRequest newRequest() {
+        return new PartialUpdateRequest();
+    }
+
+    @Override
+    protected PartialUpdateResponse newResponse() {
+        return new PartialUpdateResponse();
+    }
+
+    @Override
+    protected ClusterBlockException checkGlobalBlock(ClusterState state, PartialUpdateRequest request) {
+        return state.blocks().globalBlockedException(ClusterBlockLevel.WRITE);
+    }
+
+    @Override
+    protected ClusterBlockException checkRequestBlock(ClusterState state, PartialUpdateRequest request) {
+        return state.blocks().indexBlockedException(ClusterBlockLevel.WRITE, request.index());
+    }
+
+    @Override
+    protected boolean retryOnFailure(Throwable e) {
+        return TransportActions.isShardNotAvailableException(e);
+    }
+
+    @Override
+    protected boolean resolveRequest(ClusterState state, PartialUpdateRequest request, ActionListener<PartialUpdateResponse> listener) {
+        MetaData metaData = state.metaData();
+        String aliasOrIndex = request.index();
+        request.routing(metaData.resolveIndexRouting(request.routing(), aliasOrIndex));
+        request.index(metaData.concreteIndex(request.index()));
+
+        // fail fast on the receiving node instead of after the get on the primary
+        if (request.routing() == null && metaData.routingRequired(request.index(), request.type())) {
+            throw new RoutingMissingException(request.index(), request.type(), request.id());
+        }
+        return true;
+    }
+
+    @Override
+    protected ShardIterator shards(ClusterState clusterState, PartialUpdateRequest request) throws ElasticsearchException {
+        if (request.shardId() != -1) {
+            return clusterState.routingTable().index(request.index()).shard(request.shardId()).primaryShardIt();
+        }
+        ShardIterator shardIterator = clusterService.operationRouting()
+                .indexShards(clusterState, request.index(), request.type(), request.id(), request.routing());
+        ShardRouting shard;
+        while ((shard = shardIterator.nextOrNull()) != null) {
+            if (shard.primary()) {
+                return new PlainShardIterator(shardIterator.shardId(), ImmutableList.of(shard));
+            }
+        }
+        return new PlainShardIterator(shardIterator.shardId(), ImmutableList.<ShardRouting>of());
+    }
+
+    @Override
+    protected void shardOperation(final PartialUpdateRequest request, final ActionListener<PartialUpdateResponse> listener) throws ElasticsearchException {
+        shardOperation(request, listener, 0);
+    }
+
+    protected void shardOperation(final PartialUpdateRequest request, final ActionListener<PartialUpdateResponse> listener, final int retryCount) throws ElasticsearchException {
+        final long startTime = System.nanoTime();
+        final PartialUpdateStats.Stats stats = partialUpdateStats.stats(request);
+        IndexService indexService = indicesService.indexServiceSafe(request.index());
+        final IndexShard indexShard = indexService.shardSafe(request.shardId());
+
+        PartialUpdateHelper.Result result;
+        try {
+            result = partialUpdateHelper.prepare(request, indexShard);
+        } catch (ElasticsearchException e) {
+            if (ExceptionsHelper.unwrapCause(e) instanceof VersionConflictEngineException) {
+                stats.versionConflict();
+            }
+            stats.failed();
+            throw e;
+        }
+        if (result.noop()) {
+            stats.phase(PartialUpdateStats.Phase.TOTAL, startTime);
+            listener.onResponse(new PartialUpdateResponse(request.index(), request.type(), request.id(),
+                    result.version(), false, retryCount, true).source(partialUpdateHelper.responseSource(request, result)));
+            return;
+        }
+        final PartialUpdateHelper.Result prepared = result;
+        IndexRequest indexRequest = result.indexRequest();
+        final long indexStart = System.nanoTime();
+        indexAction.execute(indexRequest, new ActionListener<IndexResponse>() {
+            @Override
+            public void onResponse(final IndexResponse response) {
+                stats.phase(PartialUpdateStats.Phase.INDEX, indexStart);
+                stats.phase(PartialUpdateStats.Phase.TOTAL, startTime);
+                stats.updated();
+                // the index response comes back on a transport thread, filtering the source and building
+                // the response is done on the plugin's pool
+                Runnable respond = new Runnable() {
+                    @Override
+                    public void run() {
+                        partialUpdateHelper.written(request, indexShard, prepared, response.getVersion());
+                        PartialUpdateResponse updateResponse = new PartialUpdateResponse(response.getIndex(), response.getType(),
+                                response.getId(), response.getVersion(), response.isCreated(), retryCount);
+                        try {
+                            updateResponse.source(partialUpdateHelper.responseSource(request, prepared));
+                        } catch (Throwable e) {
+                            // the update is written, a failure here must not trigger a retry
+                            listener.onFailure(e);
+                            return;
+                        }
+                        listener.onResponse(updateResponse);
+                    }
+                };
+                try {
+                    threadPool.executor(executor()).execute(respond);
+                } catch (EsRejectedExecutionException e) {
+                    // the update is written, answer it here rather than report a rejection
+                    respond.run();
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                e = ExceptionsHelper.unwrapCause(e);
+                if (e instanceof VersionConflictEngineException) {
+                    stats.versionConflict();
+                }
+                if (e instanceof VersionConflictEngineException && retryCount < request.retryOnConflict()
+                        && request.version() == Versions.MATCH_ANY) {
+                    TimeValue delay = retryDelay(retryCount);
+                    if (logger.isTraceEnabled()) {
+                        logger.trace("{}: version conflict, retry [{}] in [{}]", request, retryCount + 1, delay);
+                    }
+                    // a rejection is thrown on the scheduler thread, hop to the executor where it can be reported
+                    threadPool.schedule(delay, ThreadPool.Names.SAME, new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                threadPool.executor(executor()).execute(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        try {
+                                            shardOperation(request, listener, retryCount + 1);
+                                        } catch (Throwable t) {
+                                            listener.onFailure(t);
+                                        }
+                                    }
+                                });
+                            } catch (Throwable t) {
+                                listener.onFailure(t);
+                            }
+                        }
+                    });
+                    return;
+                }
+                stats.failed();
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    /**
+     * Full jitter exponential backoff: a random delay up to <tt>retryBackoff * 2^retryCount</tt>,
+     * capped at <tt>maxRetryBackoff</tt>, so writers that collided do not collide again in lockstep.
+     */
+    private TimeValue retryDelay(int retryCount) {
+        long ceiling = Math.min(maxRetryBackoff.millis(), retryBackoff.millis() << Math.min(retryCount, 16));
+        return TimeValue.timeValueMillis((long) (random.nextDouble() * (ceiling + 1)));
+    }
+}
@@ -0,0 +1,511 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.ImmutableList;
+import org.elasticsearch.common.collect.ImmutableMap;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.collect.Sets;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A patch written with update operators, compiled into the tree of fields it touches:
+ * <pre>
+ * {
+ *     "$set" : {"name" : "medcl", "profile.city" : "beijing"},
+ *     "$unset" : ["draft"],
+ *     "$inc" : {"stats.views" : 1},
+ *     "$max" : {"high_score" : 42},
+ *     "$push" : {"events" : {"$each" : ["login"], "$cap" : 100}},
+ *     "$pull" : {"tags" : ["old"]},
+ *     "$if_equals" : {"status" : "published"}
+ * }
+ * </pre>
+ * Operator paths may always use dots, a field name with dots is addressed with a JSON pointer.
+ * <p/>
+ * A plan only depends on the {@link Shape} of a patch, its operators, paths and caps, not on its values,
+ * so it is immutable and shared by all patches of the same shape, see {@link UpdatePlans}. The values are
+ * bound when the plan is applied.
+ * <p/>
+ * Applying a plan is a single pass over the source token stream like {@link XContentSourceMerger}: only
+ * the fields the plan touches are read into memory. When a <tt>$if_equals</tt> guard does not match the
+ * current value, the update fails with {@link PartialUpdateConditionException} and nothing is written.
+ */
+public final class UpdatePlan {
+
+    enum Operator {
+        SET, UNSET, INC, MAX, MIN, PUSH, PULL, IF_EQUALS;
+
+        final String fieldName = "$" + name().toLowerCase(Locale.ROOT);
+
+        static Operator fromString(String name) {
+            for (Operator operator : values()) {
+                if (operator.fieldName.equals(name)) {
+                    return operator;
+                }
+            }
+            throw new ElasticsearchIllegalArgumentException("unknown update operator [" + name + "]");
+        }
+    }
+
+    private static final Object REMOVED = new Object();
+
+    private final Node root;
+
+    private UpdatePlan(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Whether the pending changes are written with update operators rather than as a partial document.
+     */
+    static boolean isOperatorPatch(Map<String, Object> pending) {
+        for (String key : pending.keySet()) {
+            if (key.startsWith("$")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether a request body is written with update operators, telling by its first field only, so
+     * without parsing the whole body. A body that mixes operators and fields fails when it is applied.
+     */
+    static boolean isOperatorPatch(BytesReference doc) {
+        if (doc == null || doc.length() == 0) {
+            return false;
+        }
+        try {
+            XContentParser parser = XContentHelper.createParser(doc);
+            try {
+                return parser.nextToken() == XContentParser.Token.START_OBJECT
+                        && parser.nextToken() == XContentParser.Token.FIELD_NAME
+                        && parser.currentName().startsWith("$");
+            } finally {
+                parser.close();
+            }
+        } catch (Exception e) {
+            // a body that does not parse fails later on
+            return false;
+        }
+    }
+
+    static UpdatePlan compile(Shape shape) {
+        Node root = new Node();
+        int slot = 0;
+        for (Step step : shape.steps) {
+            root.put(PatchTree.path(step.path, true), 0, step.hasValue() ? step.withSlot(slot++) : step);
+        }
+        return new UpdatePlan(root.freeze());
+    }
+
+    /**
+     * @param timestamp the value of {@link PartialUpdateHelper#LAST_PARTIAL_UPDATED}, or a negative value to keep the stored one
+     */
+    public MergeResult apply(BytesReference source, Object[] values, long timestamp) throws IOException {
+        XContentType contentType = XContentFactory.xContentType(source);
+        XContentParser parser = XContentFactory.xContent(contentType).createParser(source);
+        try {
+            XContentBuilder builder = XContentFactory.contentBuilder(contentType);
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+                throw new ElasticsearchParseException("source is not an object");
+            }
+            builder.startObject();
+            boolean changed = applyObject(parser, builder, root, values, timestamp, true);
+            if (timestamp >= 0) {
+                builder.field(PartialUpdateHelper.LAST_PARTIAL_UPDATED, timestamp);
+            }
+            builder.endObject();
+            return new MergeResult(builder, changed);
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * @return whether any field of the object changed
+     */
+    private boolean applyObject(XContentParser parser, XContentBuilder builder, Node node, Object[] values, long timestamp,
+                                boolean root) throws IOException {
+        boolean changed = false;
+        Set<String> seen = Sets.newHashSetWithExpectedSize(node.entries.size());
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token != XContentParser.Token.FIELD_NAME) {
+                throw new ElasticsearchParseException("unexpected token [" + token + "] in source");
+            }
+            String fieldName = parser.currentName();
+            if (root && PartialUpdateHelper.LAST_PARTIAL_UPDATED.equals(fieldName) && (timestamp >= 0 || !node.entries.containsKey(fieldName))) {
+                // without a timestamp of its own the update may set the field like any other
+                if (timestamp >= 0) {
+                    parser.nextToken();
+                    parser.skipChildren();
+                } else {
+                    builder.copyCurrentStructure(parser);
+                }
+                continue;
+            }
+            Object entry = node.entries.get(fieldName);
+            if (entry == null) {
+                builder.copyCurrentStructure(parser);
+                continue;
+            }
+            seen.add(fieldName);
+            token = parser.nextToken();
+            if (entry instanceof Node) {
+                if (token == XContentParser.Token.START_OBJECT) {
+                    builder.startObject(fieldName);
+                    changed |= applyObject(parser, builder, (Node) entry, values, timestamp, false);
+                    builder.endObject();
+                } else if (token == XContentParser.Token.VALUE_NULL) {
+                    Map<String, Object> created = createObject((Node) entry, values);
+                    if (created != null) {
+                        builder.field(fieldName, created);
+                        changed = true;
+                    } else {
+                        builder.nullField(fieldName);
+                    }
+                } else {
+                    throw new ElasticsearchIllegalArgumentException("can not update field [" + fieldName + "], it is not an object");
+                }
+            } else {
+                Object current = XContentSourceMerger.readValue(parser, token);
+                Object result = ((Field) entry).apply(current, true, values);
+                if (result != REMOVED) {
+                    builder.field(fieldName).value(result);
+                    changed |= !XContentSourceMerger.valuesEqual(current, result);
+                } else {
+                    changed = true;
+                }
+            }
+        }
+
+        for (Map.Entry<String, Object> entry : node.entries.entrySet()) {
+            if (seen.contains(entry.getKey()) || (root && timestamp >= 0 && PartialUpdateHelper.LAST_PARTIAL_UPDATED.equals(entry.getKey()))) {
+                continue;
+            }
+            Object result = create(entry.getValue(), values);
+            if (result != REMOVED) {
+                builder.field(entry.getKey()).value(result);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * The value of a field the source does not have, {@link #REMOVED} if the plan does not create it.
+     */
+    private static Object create(Object entry, Object[] values) {
+        if (entry instanceof Node) {
+            Map<String, Object> created = createObject((Node) entry, values);
+            return created == null ? REMOVED : created;
+        }
+        return ((Field) entry).apply(null, false, values);
+    }
+
+    private static Map<String, Object> createObject(Node node, Object[] values) {
+        Map<String, Object> created = null;
+        for (Map.Entry<String, Object> entry : node.entries.entrySet()) {
+            Object value = create(entry.getValue(), values);
+            if (value != REMOVED) {
+                if (created == null) {
+                    created = Maps.newLinkedHashMap();
+                }
+                created.put(entry.getKey(), value);
+            }
+        }
+        return created;
+    }
+
+    /**
+     * The operators, paths and caps of a patch, in the order given, and its values. Two patches of the
+     * same shape compile to the same plan.
+     */
+    public static final class Shape {
+
+        private final List<Step> steps = Lists.newArrayList();
+        private final List<Object> values = Lists.newArrayList();
+        private final String key;
+
+        @SuppressWarnings("unchecked")
+        public Shape(Map<String, Object> pending) {
+            StringBuilder key = new StringBuilder();
+            for (Map.Entry<String, Object> entry : pending.entrySet()) {
+                if (!entry.getKey().startsWith("$")) {
+                    throw new ElasticsearchIllegalArgumentException("field [" + entry.getKey() + "] can not be mixed with update operators, use $set");
+                }
+                Operator operator = Operator.fromString(entry.getKey());
+                if (operator == Operator.UNSET) {
+                    for (String path : unsetPaths(entry.getValue())) {
+                        add(key, new Step(operator, path, 0), null);
+                    }
+                    continue;
+                }
+                if (!(entry.getValue() instanceof Map)) {
+                    throw new ElasticsearchIllegalArgumentException("[" + entry.getKey() + "] must be an object of fields");
+                }
+                for (Map.Entry<String, Object> field : ((Map<String, Object>) entry.getValue()).entrySet()) {
+                    Object value = field.getValue();
+                    int cap = 0;
+                    if (operator == Operator.PUSH && value instanceof Map && ((Map) value).containsKey("$each")) {
+                        Map<String, Object> push = (Map<String, Object>) value;
+                        value = push.get("$each");
+                        Object capValue = push.get("$cap");
+                        if (capValue != null) {
+                            cap = cap(field.getKey(), capValue);
+                        }
+                    } else if ((operator == Operator.INC || operator == Operator.MAX || operator == Operator.MIN) && !(value instanceof Number)
+                            && !(operator != Operator.INC && value instanceof String)) {
+                        throw new ElasticsearchIllegalArgumentException("[" + entry.getKey() + "] of [" + field.getKey() + "] must be a number");
+                    }
+                    add(key, new Step(operator, field.getKey(), cap), value);
+                }
+            }
+            this.key = key.toString();
+        }
+
+        private static int cap(String field, Object value) {
+            int cap;
+            if (value instanceof Number && XContentSourceMerger.isIntegral((Number) value)) {
+                cap = ((Number) value).intValue();
+            } else if (value instanceof String) {
+                try {
+                    cap = Integer.parseInt((String) value);
+                } catch (NumberFormatException e) {
+                    throw new ElasticsearchIllegalArgumentException("$cap of [" + field + "] must be a number, got [" + value + "]");
+                }
+            } else {
+                throw new ElasticsearchIllegalArgumentException("$cap of [" + field + "] must be a number, got [" + value + "]");
+            }
+            if (cap < 0) {
+                throw new ElasticsearchIllegalArgumentException("$cap of [" + field + "] must not be negative");
+            }
+            return cap;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Collection<String> unsetPaths(Object value) {
+            if (value instanceof String) {
+                return ImmutableList.of((String) value);
+            } else if (value instanceof List) {
+                List<String> paths = Lists.newArrayList();
+                for (Object path : (List<Object>) value) {
+                    paths.add(String.valueOf(path));
+                }
+                return paths;
+            } else if (value instanceof Map) {
+                return ((Map<String, Object>) value).keySet();
+            }
+            throw new ElasticsearchIllegalArgumentException("[$unset] must be a field, an array of fields or an object");
+        }
+
+        private void add(StringBuilder key, Step step, Object value) {
+            steps.add(step);
+            if (step.hasValue()) {
+                values.add(value);
+            }
+            key.append(step.operator.fieldName).append('\u0000').append(step.path).append('\u0000').append(step.cap).append('\u0001');
+        }
+
+        public String key() {
+            return key;
+        }
+
+        public Object[] values() {
+            return values.toArray();
+        }
+    }
+
+    /**
+     * One operator applied to one path. <tt>slot</tt> is the index of its value among the bound values.
+     */
+    static final class Step {
+        final Operator operator;
+        final String path;
+        final int cap;
+        final int slot;
+
+        Step(Operator operator, String path, int cap) {
+            this(operator, path, cap, -1);
+        }
+
+        private Step(Operator operator, String path, int cap, int slot) {
+            this.operator = operator;
+            this.path = path;
+            this.cap = cap;
+            this.slot = slot;
+        }
+
+        boolean hasValue() {
+            return operator != Operator.UNSET;
+        }
+
+        Step withSlot(int slot) {
+            return new Step(operator, path, cap, slot);
+        }
+
+        /**
+         * The new value of the field, {@link #REMOVED} if the field is to be left out.
+         */
+        Object apply(Object current, boolean present, Object[] values) {
+            Object value = slot < 0 ? null : values[slot];
+            switch (operator) {
+                case SET:
+                    return value;
+                case UNSET:
+                    return REMOVED;
+                case INC:
+                    if (current == null) {
+                        return value;
+                    }
+                    if (!(current instanceof Number)) {
+                        throw new ElasticsearchIllegalArgumentException("can not increment field [" + path + "], it is not a number");
+                    }
+                    return add((Number) current, (Number) value);
+                case MAX:
+                case MIN:
+                    if (current == null) {
+                        return value;
+                    }
+                    int compared = compare(current, value);
+                    return (operator == Operator.MAX ? compared >= 0 : compared <= 0) ? current : value;
+                case PUSH:
+                    List<Object> pushed = Lists.newArrayList();
+                    if (current instanceof List) {
+                        pushed.addAll((List<?>) current);
+                    } else if (current != null) {
+                        pushed.add(current);
+                    }
+                    pushed.addAll(ArrayMerges.values(value));
+                    if (cap > 0 && pushed.size() > cap) {
+                        return Lists.newArrayList(pushed.subList(pushed.size() - cap, pushed.size()));
+                    }
+                    return pushed;
+                case PULL:
+                    if (!present) {
+                        return REMOVED;
+                    }
+                    if (current == null) {
+                        return null;
+                    }
+                    if (!(current instanceof List)) {
+                        throw new ElasticsearchIllegalArgumentException("can not pull from field [" + path + "], it is not an array");
+                    }
+                    Set<Object> pulled = Sets.newHashSet(ArrayMerges.values(value));
+                    List<Object> kept = Lists.newArrayListWithCapacity(((List<?>) current).size());
+                    for (Object element : (List<?>) current) {
+                        if (!pulled.contains(element)) {
+                            kept.add(element);
+                        }
+                    }
+                    return kept;
+                default:
+                    throw new ElasticsearchIllegalArgumentException("[" + operator.fieldName + "] does not update a field");
+            }
+        }
+
+        private Number add(Number current, Number value) {
+            if (XContentSourceMerger.isIntegral(current) && XContentSourceMerger.isIntegral(value)) {
+                return current.longValue() + value.longValue();
+            }
+            return current.doubleValue() + value.doubleValue();
+        }
+
+        private int compare(Object current, Object value) {
+            if (current instanceof Number && value instanceof Number) {
+                return Double.compare(((Number) current).doubleValue(), ((Number) value).doubleValue());
+            }
+            if (current instanceof String && value instanceof String) {
+                return ((String) current).compareTo((String) value);
+            }
+            throw new ElasticsearchIllegalArgumentException("can not compare field [" + path + "] with [" + value + "]");
+        }
+    }
+
+    /**
+     * A leaf of the plan: at most one update of the field, and an optional guard on its current value.
+     */
+    static final class Field {
+        Step update;
+        Step guard;
+
+        Object apply(Object current, boolean present, Object[] values) {
+            if (guard != null && !XContentSourceMerger.valuesEqual(current, values[guard.slot])) {
+                throw new PartialUpdateConditionException(guard.path, values[guard.slot], current);
+            }
+            if (update == null) {
+                return present ? current : REMOVED;
+            }
+            return update.apply(current, present, values);
+        }
+    }
+
+    static final class Node {
+        private Map<String, Object> entries = Maps.newLinkedHashMap();
+
+        private void put(String[] path, int level, Step step) {
+            String name = path[level];
+            if (name.length() == 0) {
+                throw new ElasticsearchIllegalArgumentException("empty field name in path [" + step.path + "]");
+            }
+            Object current = entries.get(name);
+            if (level == path.length - 1) {
+                if (current == null) {
+                    current = new Field();
+                    entries.put(name, current);
+                } else if (!(current instanceof Field)) {
+                    throw conflict(step);
+                }
+                Field field = (Field) current;
+                if (step.operator == Operator.IF_EQUALS) {
+                    if (field.guard != null) {
+                        throw conflict(step);
+                    }
+                    field.guard = step;
+                } else {
+                    if (field.update != null) {
+                        throw conflict(step);
+                    }
+                    field.update = step;
+                }
+                return;
+            }
+            if (current == null) {
+                current = new Node();
+                entries.put(name, current);
+            } else if (!(current instanceof Node)) {
+                throw conflict(step);
+            }
+            ((Node) current).put(path, level + 1, step);
+        }
+
+        private static ElasticsearchIllegalArgumentException conflict(Step step) {
+            return new ElasticsearchIllegalArgumentException("[" + step.operator.fieldName + "] of [" + step.path + "] conflicts with another update");
+        }
+
+        Node freeze() {
+            for (Object entry : entries.values()) {
+                if (entry instanceof Node) {
+                    ((Node) entry).freeze();
+                }
+            }
+            entries = ImmutableMap.copyOf(entries);
+            return this;
+        }
+    }
+}
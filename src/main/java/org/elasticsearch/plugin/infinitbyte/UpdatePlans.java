@@ -0,0 +1,39 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Compiled {@link UpdatePlan}s by patch shape. Clients tend to send the same few shapes over and over,
+ * with different values, so the plans are compiled once and reused. At most
+ * <tt>partial_update.plan_cache.size</tt> plans (default 1000) are kept, the least recently used go first.
+ * <p/>
+ * Only the tree of fields a plan touches is cached. Every patch is still walked once to build its
+ * {@link UpdatePlan.Shape}, which validates it and collects the values to bind, and the key falls out
+ * of that walk.
+ */
+public class UpdatePlans extends AbstractComponent {
+
+    private final Cache<String, UpdatePlan> plans;
+
+    @Inject
+    public UpdatePlans(Settings settings) {
+        super(settings);
+        this.plans = CacheBuilder.newBuilder()
+                .maximumSize(settings.getAsInt("partial_update.plan_cache.size", 1000))
+                .build();
+    }
+
+    public UpdatePlan plan(UpdatePlan.Shape shape) {
+        UpdatePlan plan = plans.getIfPresent(shape.key());
+        if (plan == null) {
+            // compiling twice on a race is harmless, both plans are the same
+            plan = UpdatePlan.compile(shape);
+            plans.put(shape.key(), plan);
+        }
+        return plan;
+    }
+}
@@ -0,0 +1,256 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Sets;
+import org.elasticsearch.common.compress.CompressorFactory;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Merges pending changes into a stored source in a single pass over its token stream.
+ * <p/>
+ * The stored source is read with an {@link XContentParser} and written to an {@link XContentBuilder}
+ * of the same content type, so binary formats such as SMILE never go through text. Fields the pending
+ * changes do not touch are copied token by token without being materialized; only a field that is
+ * merged with one of the array modes is read into memory.
+ * <p/>
+ * A pending change may address a nested field by path, see {@link PatchTree}. Only the objects on the
+ * way to a changed field are descended into, their untouched siblings are copied as they are; missing
+ * objects on the path are created.
+ * <p/>
+ * Array modes:
+ * <ul>
+ * <li><tt>append</tt>: adds a single value, or the values of an array not present yet, keeping the last
+ * <tt>array_cap</tt> elements if set</li>
+ * <li><tt>remove</tt>: removes the first occurrence of each value</li>
+ * <li><tt>add_to_set</tt>: drops duplicates from the array and adds the values not present yet</li>
+ * <li><tt>union</tt>: like <tt>add_to_set</tt>, but a missing or single valued field is turned into an array</li>
+ * </ul>
+ */
+public class XContentSourceMerger implements SourceMerger {
+
+    public static final String MERGE_REPLACE = "replace";
+    public static final String MERGE_APPEND = "append";
+    public static final String MERGE_REMOVE = "remove";
+    public static final String MERGE_ADD_TO_SET = "add_to_set";
+    public static final String MERGE_UNION = "union";
+
+    @Override
+    public MergeResult merge(BytesReference source, Map<String, Object> pending, boolean dottedPaths, String arrayMerge, int arrayCap,
+                             long timestamp) throws IOException {
+        PatchTree patch = PatchTree.build(pending, dottedPaths);
+        // sources read from a get or search are uncompressed already, this only costs a header check
+        source = CompressorFactory.uncompressIfNeeded(source);
+        XContentType contentType = XContentFactory.xContentType(source);
+        XContentParser parser = XContentFactory.xContent(contentType).createParser(source);
+        try {
+            XContentBuilder builder = XContentFactory.contentBuilder(contentType);
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+                throw new ElasticsearchParseException("source is not an object");
+            }
+            builder.startObject();
+            boolean changed = mergeObject(parser, builder, patch, arrayMerge, arrayCap, timestamp, true);
+            if (timestamp >= 0) {
+                builder.field(PartialUpdateHelper.LAST_PARTIAL_UPDATED, timestamp);
+            }
+            builder.endObject();
+            return new MergeResult(builder, changed);
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Merges the fields of the object the parser is positioned in, up to and including its end.
+     * Subtrees without pending changes are copied as they are.
+     *
+     * @return whether any field of the object changed
+     */
+    private boolean mergeObject(XContentParser parser, XContentBuilder builder, PatchTree patch, String arrayMerge, int arrayCap,
+                                long timestamp, boolean root) throws IOException {
+        boolean changed = false;
+        Set<String> merged = Sets.newHashSetWithExpectedSize(patch.size());
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token != XContentParser.Token.FIELD_NAME) {
+                throw new ElasticsearchParseException("unexpected token [" + token + "] in source");
+            }
+            String fieldName = parser.currentName();
+            if (root && PartialUpdateHelper.LAST_PARTIAL_UPDATED.equals(fieldName) && (timestamp >= 0 || !patch.contains(fieldName))) {
+                // without a timestamp of its own the update may set the field like any other
+                if (timestamp >= 0) {
+                    parser.nextToken();
+                    parser.skipChildren();
+                } else {
+                    builder.copyCurrentStructure(parser);
+                }
+            } else if (!patch.contains(fieldName)) {
+                // copies the field name and its value as they are
+                builder.copyCurrentStructure(parser);
+            } else {
+                merged.add(fieldName);
+                token = parser.nextToken();
+                Object value = patch.get(fieldName);
+                builder.field(fieldName);
+                if (value instanceof PatchTree) {
+                    if (token == XContentParser.Token.START_OBJECT) {
+                        builder.startObject();
+                        changed |= mergeObject(parser, builder, (PatchTree) value, arrayMerge, arrayCap, timestamp, false);
+                        builder.endObject();
+                    } else if (token == XContentParser.Token.VALUE_NULL) {
+                        writeNew(builder, (PatchTree) value, arrayMerge);
+                        changed = true;
+                    } else {
+                        throw new ElasticsearchIllegalArgumentException("can not merge into field [" + fieldName + "], it is not an object");
+                    }
+                } else if (token == XContentParser.Token.START_ARRAY && isArrayMerge(arrayMerge)) {
+                    List<Object> existing = parser.list();
+                    // append works in place, and the length alone misses e.g. add_to_set turning [a,a] into [a,b]
+                    List<Object> before = Lists.newArrayList(existing);
+                    List<Object> result = mergeArray(existing, value, arrayMerge, arrayCap);
+                    changed |= !valuesEqual(before, result);
+                    builder.value(result);
+                } else if (MERGE_UNION.equals(arrayMerge)) {
+                    List<Object> existing = Lists.newArrayList();
+                    Object existingValue = readValue(parser, token);
+                    if (existingValue != null) {
+                        existing.add(existingValue);
+                    }
+                    List<Object> before = Lists.newArrayList(existing);
+                    List<Object> result = mergeArray(existing, value, arrayMerge, arrayCap);
+                    // a single value turning into an array of itself alone is no change
+                    changed |= !valuesEqual(before, result);
+                    builder.value(result);
+                } else {
+                    // the current value is only read to tell whether the update changes anything
+                    changed |= !valuesEqual(readValue(parser, token), value);
+                    builder.value(value);
+                }
+            }
+        }
+
+        for (Map.Entry<String, Object> entry : patch.entries().entrySet()) {
+            if (merged.contains(entry.getKey()) || (root && timestamp >= 0 && PartialUpdateHelper.LAST_PARTIAL_UPDATED.equals(entry.getKey()))) {
+                continue;
+            }
+            builder.field(entry.getKey());
+            writeNew(builder, entry.getValue(), arrayMerge);
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Writes a pending change for a field the source does not have.
+     */
+    private void writeNew(XContentBuilder builder, Object value, String arrayMerge) throws IOException {
+        if (value instanceof PatchTree) {
+            builder.startObject();
+            for (Map.Entry<String, Object> entry : ((PatchTree) value).entries().entrySet()) {
+                builder.field(entry.getKey());
+                writeNew(builder, entry.getValue(), arrayMerge);
+            }
+            builder.endObject();
+        } else if (MERGE_UNION.equals(arrayMerge)) {
+            builder.value(ArrayMerges.addToSet(Lists.<Object>newArrayList(), ArrayMerges.values(value)));
+        } else {
+            builder.value(value);
+        }
+    }
+
+    static boolean isArrayMerge(String arrayMerge) {
+        return MERGE_APPEND.equals(arrayMerge) || MERGE_REMOVE.equals(arrayMerge)
+                || MERGE_ADD_TO_SET.equals(arrayMerge) || MERGE_UNION.equals(arrayMerge);
+    }
+
+    private List<Object> mergeArray(List<Object> existing, Object value, String arrayMerge, int arrayCap) {
+        if (MERGE_APPEND.equals(arrayMerge)) {
+            return ArrayMerges.append(existing, value, arrayCap);
+        }
+        List<Object> values = ArrayMerges.values(value);
+        if (MERGE_REMOVE.equals(arrayMerge)) {
+            return ArrayMerges.remove(existing, values);
+        } else {
+            return ArrayMerges.addToSet(existing, values);
+        }
+    }
+
+    /**
+     * Equality of source values, numbers are equal if they have the same value whatever their type,
+     * so a value read from the source compares equal to the same value given in a patch.
+     */
+    @SuppressWarnings("unchecked")
+    static boolean valuesEqual(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            if (isIntegral((Number) a) && isIntegral((Number) b)) {
+                return ((Number) a).longValue() == ((Number) b).longValue();
+            }
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue()) == 0;
+        }
+        if (a instanceof List && b instanceof List) {
+            List<Object> listA = (List<Object>) a;
+            List<Object> listB = (List<Object>) b;
+            if (listA.size() != listB.size()) {
+                return false;
+            }
+            for (int i = 0; i < listA.size(); i++) {
+                if (!valuesEqual(listA.get(i), listB.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (a instanceof Map && b instanceof Map) {
+            Map<String, Object> mapA = (Map<String, Object>) a;
+            Map<String, Object> mapB = (Map<String, Object>) b;
+            if (mapA.size() != mapB.size()) {
+                return false;
+            }
+            for (Map.Entry<String, Object> entry : mapA.entrySet()) {
+                if (!mapB.containsKey(entry.getKey()) || !valuesEqual(entry.getValue(), mapB.get(entry.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return a == null ? b == null : a.equals(b);
+    }
+
+    static boolean isIntegral(Number number) {
+        return number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte;
+    }
+
+    /**
+     * Reads the value the parser is positioned on, with the same types as {@link XContentParser#map()}.
+     */
+    static Object readValue(XContentParser parser, XContentParser.Token token) throws IOException {
+        switch (token) {
+            case START_OBJECT:
+                return parser.map();
+            case START_ARRAY:
+                return parser.list();
+            case VALUE_STRING:
+                return parser.text();
+            case VALUE_NUMBER:
+                return parser.numberValue();
+            case VALUE_BOOLEAN:
+                return parser.booleanValue();
+            case VALUE_EMBEDDED_OBJECT:
+                return parser.binaryValue();
+            case VALUE_NULL:
+                return null;
+            default:
+                throw new ElasticsearchParseException("unexpected token [" + token + "] in source");
+        }
+    }
+}
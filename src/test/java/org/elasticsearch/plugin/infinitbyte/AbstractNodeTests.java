@@ -0,0 +1,100 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.junit.AfterClass;
+import org.junit.Before;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs a local node in the test JVM with the plugin loaded, shared by the tests of a class. Each test
+ * starts with an empty <tt>test</tt> index of one shard.
+ */
+public abstract class AbstractNodeTests {
+
+    protected static final String INDEX = "test";
+    protected static final String TYPE = "doc";
+
+    private static Node node;
+    private static File home;
+
+    /**
+     * Node settings on top of the defaults, read when the first test of a class starts the node.
+     */
+    protected Settings nodeSettings() {
+        return ImmutableSettings.EMPTY;
+    }
+
+    @Before
+    public void startNodeAndCreateIndex() throws IOException {
+        if (node == null) {
+            home = File.createTempFile("partialupdate-test", "");
+            home.delete();
+            home.mkdirs();
+            node = NodeBuilder.nodeBuilder()
+                    .local(true)
+                    .settings(ImmutableSettings.settingsBuilder()
+                            .put("cluster.name", "partialupdate-test-" + getClass().getSimpleName())
+                            .put("path.home", home.getAbsolutePath())
+                            .put("plugin.types", PartialUpdatePlugin.class.getName())
+                            .put("plugins.load_classpath_plugins", false)
+                            .put("http.enabled", false)
+                            .put("discovery.zen.ping.multicast.enabled", false)
+                            .put("gateway.type", "none")
+                            .put("index.store.type", "memory")
+                            .put("index.number_of_shards", 1)
+                            .put("index.number_of_replicas", 0)
+                            .put(nodeSettings()))
+                    .node();
+        }
+        if (client().admin().indices().prepareExists(INDEX).execute().actionGet().isExists()) {
+            client().admin().indices().prepareDelete(INDEX).execute().actionGet();
+        }
+        client().admin().indices().prepareCreate(INDEX).execute().actionGet();
+        client().admin().cluster().prepareHealth(INDEX).setWaitForGreenStatus().execute().actionGet();
+    }
+
+    @AfterClass
+    public static void stopNode() {
+        if (node != null) {
+            node.close();
+            node = null;
+        }
+        if (home != null) {
+            deleteRecursively(home);
+            home = null;
+        }
+    }
+
+    protected static Node node() {
+        return node;
+    }
+
+    protected static Client client() {
+        return node.client();
+    }
+
+    protected static long index(String id, XContentBuilder source) {
+        return client().prepareIndex(INDEX, TYPE, id).setSource(source).setRefresh(true).execute().actionGet().getVersion();
+    }
+
+    protected static PartialUpdateRequest update(String id, XContentBuilder doc) {
+        return new PartialUpdateRequest(INDEX, TYPE, id).doc(doc.bytes());
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
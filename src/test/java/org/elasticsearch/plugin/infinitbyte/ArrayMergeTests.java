@@ -0,0 +1,55 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.plugin.infinitbyte.XContentSourceMergerTests.list;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Each array merge mode through a single update, with a change that keeps the length of the array: the
+ * update must be written, not taken for a noop. <tt>remove</tt> only drops elements, so the same length
+ * means nothing changed.
+ */
+public class ArrayMergeTests extends AbstractNodeTests {
+
+    @Test
+    public void replace() throws Exception {
+        assertArrayMerge(XContentSourceMerger.MERGE_REPLACE, 0, list("a", "b"), list("b", "a"), false, list("b", "a"));
+    }
+
+    @Test
+    public void appendWithCap() throws Exception {
+        assertArrayMerge(XContentSourceMerger.MERGE_APPEND, 2, list("a", "b"), "c", false, list("b", "c"));
+    }
+
+    @Test
+    public void addToSet() throws Exception {
+        assertArrayMerge(XContentSourceMerger.MERGE_ADD_TO_SET, 0, list("a", "a"), list("b"), false, list("a", "b"));
+    }
+
+    @Test
+    public void union() throws Exception {
+        assertArrayMerge(XContentSourceMerger.MERGE_UNION, 0, list("a", "a"), list("b"), false, list("a", "b"));
+    }
+
+    @Test
+    public void removeOfAMissingValue() throws Exception {
+        assertArrayMerge(XContentSourceMerger.MERGE_REMOVE, 0, list("a", "b"), list("c"), true, list("a", "b"));
+    }
+
+    private void assertArrayMerge(String mode, int cap, List<Object> existing, Object value, boolean noop,
+                                  List<Object> expected) throws Exception {
+        long version = index("1", jsonBuilder().startObject().field("tags", existing).endObject());
+        PartialUpdateResponse response = client().execute(PartialUpdateAction.INSTANCE,
+                update("1", jsonBuilder().startObject().field("tags", value).endObject()).arrayMerge(mode).arrayCap(cap)).actionGet();
+
+        assertThat(response.isNoop(), equalTo(noop));
+        assertThat(response.getVersion(), equalTo(noop ? version : version + 1));
+        Object stored = client().prepareGet(INDEX, TYPE, "1").execute().actionGet().getSourceAsMap().get("tags");
+        assertThat(stored, equalTo((Object) expected));
+    }
+}
@@ -0,0 +1,115 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.fetch.source.FetchSourceContext;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+
+public class BulkPartialUpdateTests extends AbstractNodeTests {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void chainedUpdatesOfTheSameDocument() throws Exception {
+        index("1", jsonBuilder().startObject().array("tags", "a").field("name", "x").endObject());
+
+        BulkPartialUpdateRequest request = new BulkPartialUpdateRequest()
+                .add(update("1", jsonBuilder().startObject().array("tags", "b").endObject()).arrayMerge(XContentSourceMerger.MERGE_APPEND))
+                .add(update("1", jsonBuilder().startObject().array("tags", "c").endObject()).arrayMerge(XContentSourceMerger.MERGE_APPEND))
+                .add(update("1", jsonBuilder().startObject().field("name", "y").endObject()));
+        BulkPartialUpdateItemResponse[] items = bulk(request);
+
+        for (int i = 0; i < items.length; i++) {
+            assertThat(items[i].getFailureMessage(), items[i].isFailed(), equalTo(false));
+            assertThat(items[i].getVersion(), equalTo(2L + i));
+        }
+        GetResponse doc = get("1");
+        assertThat(doc.getVersion(), equalTo(4L));
+        assertThat((Iterable<Object>) doc.getSourceAsMap().get("tags"), contains((Object) "a", "b", "c"));
+        assertThat(doc.getSourceAsMap().get("name"), equalTo((Object) "y"));
+    }
+
+    @Test
+    public void noopInAChainKeepsTheVersion() throws Exception {
+        index("1", jsonBuilder().startObject().field("name", "x").endObject());
+
+        BulkPartialUpdateRequest request = new BulkPartialUpdateRequest()
+                .add(update("1", jsonBuilder().startObject().field("name", "y").endObject()))
+                .add(update("1", jsonBuilder().startObject().field("name", "y").endObject()))
+                .add(update("1", jsonBuilder().startObject().field("name", "z").endObject()));
+        BulkPartialUpdateItemResponse[] items = bulk(request);
+
+        assertThat(items[0].getVersion(), equalTo(2L));
+        assertThat(items[1].isNoop(), equalTo(true));
+        assertThat(items[1].getVersion(), equalTo(2L));
+        assertThat(items[2].getVersion(), equalTo(3L));
+        assertThat(get("1").getSourceAsMap().get("name"), equalTo((Object) "z"));
+    }
+
+    @Test
+    public void itemsAfterAFailedWriteConflict() throws Exception {
+        index("1", jsonBuilder().startObject().field("num", 1).field("name", "x").endObject());
+
+        // the first write fails on the mapping, the second was merged against the version it would have created
+        BulkPartialUpdateRequest request = new BulkPartialUpdateRequest()
+                .add(update("1", jsonBuilder().startObject().field("num", "not a number").endObject()))
+                .add(update("1", jsonBuilder().startObject().field("name", "y").endObject()));
+        BulkPartialUpdateItemResponse[] items = bulk(request);
+
+        assertThat(items[0].isFailed(), equalTo(true));
+        assertThat(items[1].getStatus(), equalTo(RestStatus.CONFLICT));
+        assertThat(get("1").getSourceAsMap().get("name"), equalTo((Object) "x"));
+    }
+
+    @Test
+    public void conflictsAreRetriedWithRetryOnConflict() throws Exception {
+        index("1", jsonBuilder().startObject().field("num", 1).field("name", "x").endObject());
+
+        BulkPartialUpdateRequest request = new BulkPartialUpdateRequest()
+                .add(update("1", jsonBuilder().startObject().field("num", "not a number").endObject()))
+                .add(update("1", jsonBuilder().startObject().field("name", "y").endObject()).retryOnConflict(1))
+                .add(update("1", jsonBuilder().startObject().field("name", "z").endObject()).retryOnConflict(1));
+        BulkPartialUpdateItemResponse[] items = bulk(request);
+
+        assertThat(items[0].isFailed(), equalTo(true));
+        assertThat(items[1].getFailureMessage(), items[1].isFailed(), equalTo(false));
+        assertThat(items[1].getVersion(), equalTo(2L));
+        // retried after the item before it
+        assertThat(items[2].getFailureMessage(), items[2].isFailed(), equalTo(false));
+        assertThat(items[2].getVersion(), equalTo(3L));
+        GetResponse doc = get("1");
+        assertThat(doc.getVersion(), equalTo(3L));
+        assertThat(doc.getSourceAsMap().get("name"), equalTo((Object) "z"));
+    }
+
+    @Test
+    public void fetchSourceIsRejectedPerItem() throws Exception {
+        index("1", jsonBuilder().startObject().field("name", "x").endObject());
+        index("2", jsonBuilder().startObject().field("name", "x").endObject());
+
+        BulkPartialUpdateRequest request = new BulkPartialUpdateRequest()
+                .add(update("1", jsonBuilder().startObject().field("name", "y").endObject()).fetchSource(new FetchSourceContext(true)))
+                .add(update("2", jsonBuilder().startObject().field("name", "y").endObject()));
+        BulkPartialUpdateItemResponse[] items = bulk(request);
+
+        assertThat(items[0].getStatus(), equalTo(RestStatus.BAD_REQUEST));
+        assertThat(items[1].isFailed(), equalTo(false));
+        assertThat(get("1").getSourceAsMap().get("name"), equalTo((Object) "x"));
+        Map<String, Object> second = get("2").getSourceAsMap();
+        assertThat(second.get("name"), equalTo((Object) "y"));
+    }
+
+    private static BulkPartialUpdateItemResponse[] bulk(BulkPartialUpdateRequest request) {
+        return client().execute(BulkPartialUpdateAction.INSTANCE, request).actionGet().getItems();
+    }
+
+    private static GetResponse get(String id) {
+        return client().prepareGet(INDEX, TYPE, id).execute().actionGet();
+    }
+}
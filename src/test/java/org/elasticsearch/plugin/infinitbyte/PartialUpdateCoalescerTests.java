@@ -0,0 +1,122 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.plugin.infinitbyte.XContentSourceMergerTests.list;
+import static org.elasticsearch.plugin.infinitbyte.XContentSourceMergerTests.pending;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+public class PartialUpdateCoalescerTests {
+
+    private final XContentSourceMerger merger = new XContentSourceMerger();
+
+    @Test
+    public void foldedReplaceEqualsSequential() throws Exception {
+        BytesReference source = jsonBuilder().startObject()
+                .field("a", 0).field("b", 0)
+                .startObject("user").field("name", "x").field("age", 1).endObject()
+                .endObject().bytes();
+        assertFoldedEqualsSequential(source, XContentSourceMerger.MERGE_REPLACE,
+                pending("a", 1, "b", 1),
+                pending("b", 2, "c", 3),
+                pending("/user/name", "y"),
+                pending("/user/name", "z", "a", 4));
+    }
+
+    @Test
+    public void foldedAppendEqualsSequential() throws Exception {
+        BytesReference source = jsonBuilder().startObject().field("tags", "a", "b").field("other", "x").endObject().bytes();
+        assertFoldedEqualsSequential(source, XContentSourceMerger.MERGE_APPEND,
+                pending("tags", list("c")),
+                pending("tags", list("a", "d")),
+                pending("tags", list("c", "e")));
+    }
+
+    @Test
+    public void foldedAddToSetAndUnionEqualSequential() throws Exception {
+        BytesReference source = jsonBuilder().startObject().field("tags", "a", "a", "b").endObject().bytes();
+        assertFoldedEqualsSequential(source, XContentSourceMerger.MERGE_ADD_TO_SET,
+                pending("tags", list("c")),
+                pending("tags", list("b", "d")));
+        assertFoldedEqualsSequential(source, XContentSourceMerger.MERGE_UNION,
+                pending("tags", list("c", "c")),
+                pending("tags", list("a", "d")));
+    }
+
+    @Test
+    public void removeIsNotFolded() throws Exception {
+        PartialUpdateCoalescer.Pending pending = buffer(XContentSourceMerger.MERGE_REMOVE, pending("tags", list("a")));
+        assertThat(pending.fold(request(XContentSourceMerger.MERGE_REMOVE, pending("tags", list("b"))), pending("tags", list("b"))),
+                equalTo(false));
+        assertThat(pending.doc, equalTo(pending("tags", list("a"))));
+        assertThat(pending.patches, equalTo(1));
+    }
+
+    @Test
+    public void changesThatDoNotFold() throws Exception {
+        // another array merge mode
+        assertNotFolded(XContentSourceMerger.MERGE_APPEND, pending("tags", list("a")),
+                request(XContentSourceMerger.MERGE_UNION, pending("tags", list("b"))));
+        // a single value appended to an array
+        assertNotFolded(XContentSourceMerger.MERGE_APPEND, pending("tags", list("a")),
+                request(XContentSourceMerger.MERGE_APPEND, pending("tags", "b")));
+        // a capped array
+        assertNotFolded(XContentSourceMerger.MERGE_APPEND, pending("tags", list("a")),
+                request(XContentSourceMerger.MERGE_APPEND, pending("tags", list("b"))).arrayCap(10));
+        // a path below a buffered value
+        assertNotFolded(XContentSourceMerger.MERGE_REPLACE, pending("/user", pending("name", "x")),
+                request(XContentSourceMerger.MERGE_REPLACE, pending("/user/name", "y")));
+        // update operators
+        assertNotFolded(XContentSourceMerger.MERGE_REPLACE, pending("a", 1),
+                request(XContentSourceMerger.MERGE_REPLACE, pending("$inc", pending("a", 1))));
+    }
+
+    @Test
+    public void memoryIsTheParsedSize() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append('x');
+        }
+        Map<String, Object> doc = pending("name", text.toString(), "tags", list("a", "b"), "count", 1);
+        // the chars of a string take two bytes each on the heap, one in the request
+        assertThat(PartialUpdateCoalescer.ramBytes(doc), greaterThan(2L * 1000));
+        assertThat(PartialUpdateCoalescer.ramBytes(doc), greaterThan((long) request(XContentSourceMerger.MERGE_REPLACE, doc).doc().length()));
+        assertThat(PartialUpdateCoalescer.ramBytes(list("a", "b")), greaterThan(PartialUpdateCoalescer.ramBytes(list("a"))));
+    }
+
+    private void assertFoldedEqualsSequential(BytesReference source, String mode, Map<String, Object>... patches) throws IOException {
+        PartialUpdateCoalescer.Pending pending = buffer(mode, patches[0]);
+        BytesReference sequential = merger.merge(source, patches[0], false, mode, 0, -1).source().bytes();
+        for (int i = 1; i < patches.length; i++) {
+            assertThat("patch " + i + " folds", pending.fold(request(mode, patches[i]), patches[i]), equalTo(true));
+            sequential = merger.merge(sequential, patches[i], false, mode, 0, -1).source().bytes();
+        }
+        assertThat(pending.patches, equalTo(patches.length));
+        BytesReference folded = merger.merge(source, pending.doc, false, mode, 0, -1).source().bytes();
+        assertThat(XContentHelper.convertToMap(folded, true).v2(), equalTo(XContentHelper.convertToMap(sequential, true).v2()));
+    }
+
+    private static void assertNotFolded(String mode, Map<String, Object> first, PartialUpdateRequest next) throws IOException {
+        PartialUpdateCoalescer.Pending pending = buffer(mode, first);
+        Map<String, Object> changes = PartialUpdateHelper.pendingChanges(next.doc());
+        assertThat(next + " folds", pending.fold(next, changes), equalTo(false));
+        assertThat(pending.doc, equalTo(first));
+    }
+
+    private static PartialUpdateCoalescer.Pending buffer(String mode, Map<String, Object> doc) throws IOException {
+        PartialUpdateRequest request = request(mode, doc);
+        return new PartialUpdateCoalescer.Pending(new PartialUpdateCoalescer.Key(request), request, doc);
+    }
+
+    private static PartialUpdateRequest request(String mode, Map<String, Object> doc) throws IOException {
+        return new PartialUpdateRequest("test", "doc", "1").arrayMerge(mode).doc(jsonBuilder().map(doc).bytes());
+    }
+}
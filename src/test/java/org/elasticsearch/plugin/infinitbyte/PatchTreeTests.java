@@ -0,0 +1,93 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.plugin.infinitbyte.XContentSourceMergerTests.object;
+import static org.elasticsearch.plugin.infinitbyte.XContentSourceMergerTests.pending;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+
+public class PatchTreeTests {
+
+    @Test
+    public void dottedKeysAreFieldNamesUnlessAsked() {
+        assertThat(PatchTree.path("stats.views", false), arrayContaining("stats.views"));
+        assertThat(PatchTree.path("stats.views", true), arrayContaining("stats", "views"));
+        assertThat(PatchTree.path("stats.daily.views", true), arrayContaining("stats", "daily", "views"));
+        // a leading or trailing dot is part of the name
+        assertThat(PatchTree.path(".views", true), arrayContaining(".views"));
+        assertThat(PatchTree.path("views.", true), arrayContaining("views."));
+    }
+
+    @Test
+    public void jsonPointersAreAlwaysPaths() {
+        assertThat(PatchTree.path("/profile/city", false), arrayContaining("profile", "city"));
+        assertThat(PatchTree.path("/profile/city", true), arrayContaining("profile", "city"));
+        // dots inside a pointer are part of the names
+        assertThat(PatchTree.path("/stats.daily/views", true), arrayContaining("stats.daily", "views"));
+        assertThat(PatchTree.path("/a~1b/c~0d/~01", false), arrayContaining("a/b", "c~d", "~1"));
+        assertThat(PatchTree.path("/", false), arrayContaining("/"));
+    }
+
+    @Test
+    public void pathsSharingAPrefixShareTheTree() {
+        PatchTree patch = PatchTree.build(pending("/user/name", "x", "/user/age", 3, "other", 1), false);
+        assertThat(patch.size(), equalTo(2));
+        assertThat(patch.get("user"), instanceOf(PatchTree.class));
+        PatchTree user = (PatchTree) patch.get("user");
+        assertThat(user.get("name"), equalTo((Object) "x"));
+        assertThat(user.get("age"), equalTo((Object) 3));
+    }
+
+    @Test(expected = ElasticsearchIllegalArgumentException.class)
+    public void valueAndPathBelowItConflict() {
+        PatchTree.build(pending("/user", "x", "/user/name", "y"), false);
+    }
+
+    @Test(expected = ElasticsearchIllegalArgumentException.class)
+    public void pathAndValueAboveItConflict() {
+        PatchTree.build(pending("/user/name", "y", "/user", "x"), false);
+    }
+
+    @Test(expected = ElasticsearchIllegalArgumentException.class)
+    public void dottedAndPointerPathsOfTheSameFieldConflict() {
+        PatchTree.build(pending("user.name", "x", "/user/name", "y"), true);
+    }
+
+    @Test
+    public void dottedFieldNameAndPointerPathDoNotConflictByDefault() {
+        PatchTree patch = PatchTree.build(pending("user.name", "x", "/user/name", "y"), false);
+        assertThat(patch.get("user.name"), equalTo((Object) "x"));
+        assertThat(patch.get("user"), instanceOf(PatchTree.class));
+    }
+
+    @Test(expected = ElasticsearchIllegalArgumentException.class)
+    public void emptyFieldNameInAPath() {
+        PatchTree.build(pending("/user//name", "x"), false);
+    }
+
+    @Test
+    public void mergeKeepsDottedFieldNamesByDefault() throws Exception {
+        XContentSourceMerger merger = new XContentSourceMerger();
+        Map<String, Object> merged = XContentHelper.convertToMap(merger.merge(jsonBuilder().startObject()
+                .field("user.name", "x")
+                .startObject("user").field("name", "x").endObject()
+                .endObject().bytes(), pending("user.name", "y"), false, XContentSourceMerger.MERGE_REPLACE, 0, -1).source().bytes(), true).v2();
+        assertThat(merged.get("user.name"), equalTo((Object) "y"));
+        assertThat(object(merged, "user"), equalTo(pending("name", "x")));
+
+        merged = XContentHelper.convertToMap(merger.merge(jsonBuilder().startObject()
+                .field("user.name", "x")
+                .startObject("user").field("name", "x").endObject()
+                .endObject().bytes(), pending("user.name", "y"), true, XContentSourceMerger.MERGE_REPLACE, 0, -1).source().bytes(), true).v2();
+        assertThat(merged.get("user.name"), equalTo((Object) "x"));
+        assertThat(object(merged, "user"), equalTo(pending("name", "y")));
+    }
+}
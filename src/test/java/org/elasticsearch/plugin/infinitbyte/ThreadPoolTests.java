@@ -0,0 +1,90 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.node.internal.InternalNode;
+import org.elasticsearch.search.fetch.source.FetchSourceContext;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.notNullValue;
+
+public class ThreadPoolTests extends AbstractNodeTests {
+
+    private static final int POOL_SIZE = 3;
+    private static final int QUEUE_SIZE = 17;
+
+    @Override
+    protected Settings nodeSettings() {
+        String prefix = "threadpool." + PartialUpdatePlugin.THREAD_POOL + ".";
+        return ImmutableSettings.settingsBuilder()
+                .put(prefix + "size", POOL_SIZE)
+                .put(prefix + "queue_size", QUEUE_SIZE)
+                .build();
+    }
+
+    @Test
+    public void poolIsFixedAndBounded() {
+        ThreadPool threadPool = ((InternalNode) node()).injector().getInstance(ThreadPool.class);
+        ThreadPool.Info info = threadPool.info(PartialUpdatePlugin.THREAD_POOL);
+        assertThat(info, notNullValue());
+        assertThat(info.getType(), equalTo("fixed"));
+        assertThat(info.getQueueSize().singles(), equalTo((long) QUEUE_SIZE));
+
+        Executor executor = threadPool.executor(PartialUpdatePlugin.THREAD_POOL);
+        assertThat(executor, instanceOf(ThreadPoolExecutor.class));
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+        assertThat(pool.getCorePoolSize(), equalTo(POOL_SIZE));
+        assertThat(pool.getMaximumPoolSize(), equalTo(POOL_SIZE));
+        assertThat(pool.getQueue().remainingCapacity(), equalTo(QUEUE_SIZE));
+    }
+
+    @Test
+    public void updateAnswersWithTheFilteredSource() throws Exception {
+        index("1", jsonBuilder().startObject().field("name", "x").field("views", 1).endObject());
+
+        PartialUpdateResponse response = client().execute(PartialUpdateAction.INSTANCE,
+                update("1", jsonBuilder().startObject().field("views", 2).endObject())
+                        .fetchSource(new FetchSourceContext(new String[]{"views"}, null))).actionGet();
+
+        assertThat(response.getVersion(), equalTo(2L));
+        Map<String, Object> source = XContentHelper.convertToMap(response.getSource(), true).v2();
+        assertThat(source.size(), equalTo(1));
+        assertThat(source.get("views"), equalTo((Object) 2));
+    }
+
+    @Test
+    public void filteredSourceIsTheSameAsAGet() throws Exception {
+        index("2", jsonBuilder().startObject()
+                .field("name", "x")
+                .startArray("comments")
+                .startObject().field("author", "a").field("text", "t1").endObject()
+                .startObject().field("author", "b").field("text", "t2").endObject()
+                .endArray()
+                .startObject("meta").field("secret", 1).endObject()
+                .endObject());
+
+        String[][] filters = {
+                {"comments.author"}, null,
+                null, {"comments.text", "meta.secret"},
+                {"comments.*", "name"}, {"*.text"}
+        };
+        for (int i = 0; i < filters.length; i += 2) {
+            PartialUpdateResponse response = client().execute(PartialUpdateAction.INSTANCE,
+                    update("2", jsonBuilder().startObject().field("name", "y" + i).endObject())
+                            .fetchSource(new FetchSourceContext(filters[i], filters[i + 1]))).actionGet();
+            Map<String, Object> fromGet = client().prepareGet(INDEX, TYPE, "2")
+                    .setFetchSource(filters[i], filters[i + 1]).execute().actionGet().getSourceAsMap();
+            assertThat(XContentHelper.convertToMap(response.getSource(), true).v2(), equalTo(fromGet));
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.plugin.infinitbyte.XContentSourceMergerTests.list;
+import static org.elasticsearch.plugin.infinitbyte.XContentSourceMergerTests.object;
+import static org.elasticsearch.plugin.infinitbyte.XContentSourceMergerTests.pending;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class UpdatePlanTests {
+
+    private MergeResult result;
+
+    @Test
+    public void set() throws Exception {
+        Map<String, Object> updated = apply(jsonBuilder().startObject()
+                        .field("name", "x")
+                        .startObject("profile").field("city", "a").field("zip", 1).endObject()
+                        .endObject(),
+                pending("$set", pending("name", "y", "profile.city", "b", "/profile/street", "c", "new", list(1, 2))));
+        assertThat(result.changed(), equalTo(true));
+        assertThat(updated.get("name"), equalTo((Object) "y"));
+        assertThat(object(updated, "profile"), equalTo(pending("city", "b", "zip", 1, "street", "c")));
+        assertThat(updated.get("new"), equalTo((Object) list(1, 2)));
+
+        apply(jsonBuilder().startObject().field("name", "x").field("n", 1).endObject(), pending("$set", pending("name", "x", "n", 1L)));
+        assertThat(result.changed(), equalTo(false));
+    }
+
+    @Test
+    public void unset() throws Exception {
+        XContentBuilder source = jsonBuilder().startObject()
+                .field("a", 1).field("b", 2).field("c", 3)
+                .startObject("profile").field("city", "a").endObject()
+                .endObject();
+        Map<String, Object> updated = apply(source, pending("$unset", "a"));
+        assertThat(updated, not(hasKey("a")));
+        assertThat(result.changed(), equalTo(true));
+
+        updated = apply(source, pending("$unset", list("a", "profile.city")));
+        assertThat(updated, not(hasKey("a")));
+        assertThat(object(updated, "profile"), equalTo(pending()));
+
+        updated = apply(source, pending("$unset", pending("b", "", "c", 1)));
+        assertThat(updated, equalTo(pending("a", 1, "profile", pending("city", "a"))));
+
+        apply(source, pending("$unset", "missing"));
+        assertThat(result.changed(), equalTo(false));
+    }
+
+    @Test
+    public void inc() throws Exception {
+        Map<String, Object> updated = apply(jsonBuilder().startObject()
+                        .field("views", 1)
+                        .field("score", 1.5)
+                        .startObject("stats").field("daily", 10).endObject()
+                        .endObject(),
+                pending("$inc", pending("views", 2, "score", 1, "stats.daily", -1, "missing", 5)));
+        assertThat(updated.get("views"), equalTo((Object) 3));
+        assertThat(updated.get("score"), equalTo((Object) 2.5));
+        assertThat(object(updated, "stats").get("daily"), equalTo((Object) 9));
+        assertThat(updated.get("missing"), equalTo((Object) 5));
+
+        apply(jsonBuilder().startObject().field("views", 1).endObject(), pending("$inc", pending("views", 0)));
+        assertThat(result.changed(), equalTo(false));
+    }
+
+    @Test(expected = ElasticsearchIllegalArgumentException.class)
+    public void incOfANonNumberField() throws Exception {
+        apply(jsonBuilder().startObject().field("views", "many").endObject(), pending("$inc", pending("views", 1)));
+    }
+
+    @Test(expected = ElasticsearchIllegalArgumentException.class)
+    public void incByANonNumber() throws Exception {
+        new UpdatePlan.Shape(pending("$inc", pending("views", "1")));
+    }
+
+    @Test
+    public void setTimestampWhenNotTouched() throws Exception {
+        Map<String, Object> updated = apply(jsonBuilder().startObject().field(PartialUpdateHelper.LAST_PARTIAL_UPDATED, 5).endObject(),
+                pending("$set", pending(PartialUpdateHelper.LAST_PARTIAL_UPDATED, 7)));
+        assertThat(result.changed(), equalTo(true));
+        assertThat(updated.get(PartialUpdateHelper.LAST_PARTIAL_UPDATED), equalTo((Object) 7));
+    }
+
+    @Test
+    public void maxAndMin() throws Exception {
+        XContentBuilder source = jsonBuilder().startObject().field("high", 10).field("low", 10).field("name", "m").endObject();
+        Map<String, Object> updated = apply(source, pending("$max", pending("high", 42, "name", "z", "missing", 1)));
+        assertThat(updated.get("high"), equalTo((Object) 42));
+        assertThat(updated.get("name"), equalTo((Object) "z"));
+        assertThat(updated.get("missing"), equalTo((Object) 1));
+
+        updated = apply(source, pending("$min", pending("low", 3, "name", "a")));
+        assertThat(updated.get("low"), equalTo((Object) 3));
+        assertThat(updated.get("name"), equalTo((Object) "a"));
+
+        apply(source, pending("$max", pending("high", 5), "$min", pending("low", 11)));
+        assertThat(result.changed(), equalTo(false));
+    }
+
+    @Test
+    public void push() throws Exception {
+        XContentBuilder source = jsonBuilder().startObject().field("events", "a", "b").field("single", "a").endObject();
+        Map<String, Object> updated = apply(source, pending("$push", pending("events", "a", "single", "b", "missing", "c")));
+        assertThat(updated.get("events"), equalTo((Object) list("a", "b", "a")));
+        assertThat(updated.get("single"), equalTo((Object) list("a", "b")));
+        assertThat(updated.get("missing"), equalTo((Object) list("c")));
+
+        updated = apply(source, pending("$push", pending("events", pending("$each", list("c", "d"), "$cap", 3))));
+        assertThat(updated.get("events"), equalTo((Object) list("b", "c", "d")));
+
+        updated = apply(source, pending("$push", pending("events", pending("$each", list("c"), "$cap", "2"))));
+        assertThat(updated.get("events"), equalTo((Object) list("b", "c")));
+    }
+
+    @Test(expected = ElasticsearchIllegalArgumentException.class)
+    public void capMustBeANumber() throws Exception {
+        new UpdatePlan.Shape(pending("$push", pending("events", pending("$each", list("c"), "$cap", "abc"))));
+    }
+
+    @Test(expected = ElasticsearchIllegalArgumentException.class)
+    public void capMustBeAWholeNumber() throws Exception {
+        new UpdatePlan.Shape(pending("$push", pending("events", pending("$each", list("c"), "$cap", 1.5))));
+    }
+
+    @Test(expected = ElasticsearchIllegalArgumentException.class)
+    public void capMustNotBeNegative() throws Exception {
+        new UpdatePlan.Shape(pending("$push", pending("events", pending("$each", list("c"), "$cap", -1))));
+    }
+
+    @Test
+    public void pull() throws Exception {
+        XContentBuilder source = jsonBuilder().startObject().field("tags", "a", "b", "a", "c").nullField("empty").endObject();
+        Map<String, Object> updated = apply(source, pending("$pull", pending("tags", list("a", "c"), "empty", "a", "missing", "a")));
+        assertThat(updated.get("tags"), equalTo((Object) list("b")));
+        assertThat(updated, hasKey("empty"));
+        assertThat(updated.get("empty"), nullValue());
+        assertThat(updated, not(hasKey("missing")));
+
+        apply(source, pending("$pull", pending("tags", "z")));
+        assertThat(result.changed(), equalTo(false));
+    }
+
+    @Test(expected = ElasticsearchIllegalArgumentException.class)
+    public void pullFromANonArray() throws Exception {
+        apply(jsonBuilder().startObject().field("tags", "a").endObject(), pending("$pull", pending("tags", "a")));
+    }
+
+    @Test
+    public void ifEquals() throws Exception {
+        XContentBuilder source = jsonBuilder().startObject().field("status", "published").field("views", 1).endObject();
+        Map<String, Object> updated = apply(source, pending("$if_equals", pending("status", "published"), "$inc", pending("views", 1)));
+        assertThat(updated.get("views"), equalTo((Object) 2));
+
+        // the guard and the update of the same field
+        updated = apply(source, pending("$if_equals", pending("status", "published"), "$set", pending("status", "archived")));
+        assertThat(updated.get("status"), equalTo((Object) "archived"));
+
+        apply(source, pending("$if_equals", pending("status", "published")));
+        assertThat(result.changed(), equalTo(false));
+    }
+
+    @Test(expected = PartialUpdateConditionException.class)
+    public void ifEqualsMismatch() throws Exception {
+        apply(jsonBuilder().startObject().field("status", "draft").endObject(),
+                pending("$if_equals", pending("status", "published"), "$set", pending("views", 1)));
+    }
+
+    @Test(expected = PartialUpdateConditionException.class)
+    public void ifEqualsOfAMissingField() throws Exception {
+        apply(jsonBuilder().startObject().field("views", 1).endObject(), pending("$if_equals", pending("status", "published")));
+    }
+
+    @Test(expected = ElasticsearchIllegalArgumentException.class)
+    public void unknownOperator() throws Exception {
+        new UpdatePlan.Shape(pending("$rename", pending("a", "b")));
+    }
+
+    @Test(expected = ElasticsearchIllegalArgumentException.class)
+    public void operatorsAndFieldsDoNotMix() throws Exception {
+        new UpdatePlan.Shape(pending("$set", pending("a", 1), "b", 2));
+    }
+
+    @Test(expected = ElasticsearchIllegalArgumentException.class)
+    public void twoUpdatesOfTheSameField() throws Exception {
+        UpdatePlan.compile(new UpdatePlan.Shape(pending("$set", pending("a", 1), "$inc", pending("a", 1))));
+    }
+
+    @Test(expected = ElasticsearchIllegalArgumentException.class)
+    public void updateBelowAnUpdatedField() throws Exception {
+        UpdatePlan.compile(new UpdatePlan.Shape(pending("$set", pending("a", 1), "$inc", pending("a.b", 1))));
+    }
+
+    @Test
+    public void patchesOfTheSameShapeShareAPlan() throws Exception {
+        UpdatePlans plans = new UpdatePlans(ImmutableSettings.EMPTY);
+        UpdatePlan.Shape first = new UpdatePlan.Shape(pending("$set", pending("a", 1), "$inc", pending("b", 1)));
+        UpdatePlan.Shape second = new UpdatePlan.Shape(pending("$set", pending("a", "x"), "$inc", pending("b", 5)));
+        UpdatePlan.Shape other = new UpdatePlan.Shape(pending("$set", pending("a", 1), "$inc", pending("c", 1)));
+        assertThat(second.key(), equalTo(first.key()));
+        assertThat(other.key(), not(equalTo(first.key())));
+        assertThat(plans.plan(second), sameInstance(plans.plan(first)));
+        assertThat(plans.plan(other), not(sameInstance(plans.plan(first))));
+    }
+
+    @Test
+    public void operatorPatchIsToldByTheFirstField() throws Exception {
+        assertThat(UpdatePlan.isOperatorPatch(jsonBuilder().map(pending("$set", pending("a", 1))).bytes()), equalTo(true));
+        assertThat(UpdatePlan.isOperatorPatch(jsonBuilder().map(pending("a", 1)).bytes()), equalTo(false));
+        assertThat(UpdatePlan.isOperatorPatch(jsonBuilder().startObject().endObject().bytes()), equalTo(false));
+        assertThat(UpdatePlan.isOperatorPatch((BytesReference) null), equalTo(false));
+    }
+
+    private Map<String, Object> apply(XContentBuilder source, Map<String, Object> patch) throws Exception {
+        UpdatePlan.Shape shape = new UpdatePlan.Shape(patch);
+        result = UpdatePlan.compile(shape).apply(source.bytes(), shape.values(), -1);
+        return XContentHelper.convertToMap(result.source().bytes(), true).v2();
+    }
+}
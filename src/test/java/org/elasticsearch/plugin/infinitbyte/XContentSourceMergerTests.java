@@ -0,0 +1,318 @@
+package org.elasticsearch.plugin.infinitbyte;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.compress.CompressorFactory;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.nullValue;
+
+public class XContentSourceMergerTests {
+
+    private final XContentSourceMerger merger = new XContentSourceMerger();
+
+    private MergeResult result;
+
+    @Test
+    public void replaceKeepsOtherFieldsAndTheirOrder() throws Exception {
+        Map<String, Object> merged = merge(jsonBuilder().startObject().field("a", 1).field("name", "x").field("b", 2).endObject(),
+                pending("name", "y"), XContentSourceMerger.MERGE_REPLACE);
+        assertThat(result.changed(), equalTo(true));
+        assertThat(Lists.newArrayList(merged.keySet()), contains("a", "name", "b"));
+        assertThat(merged.get("name"), equalTo((Object) "y"));
+    }
+
+    @Test
+    public void replaceWithTheSameValueIsANoop() throws Exception {
+        // the source holds an int, the patch a long
+        merge(jsonBuilder().startObject().field("n", 1).field("tags", "a", "b").endObject(),
+                pending("n", 1L, "tags", list("a", "b")), XContentSourceMerger.MERGE_REPLACE);
+        assertThat(result.changed(), equalTo(false));
+    }
+
+    @Test
+    public void replaceAnArrayWithTheSameLength() throws Exception {
+        Map<String, Object> merged = merge(jsonBuilder().startObject().field("tags", "a", "b").endObject(),
+                pending("tags", list("b", "a")), XContentSourceMerger.MERGE_REPLACE);
+        assertThat(result.changed(), equalTo(true));
+        assertThat(merged.get("tags"), equalTo((Object) list("b", "a")));
+    }
+
+    @Test
+    public void newFieldsAreAddedAtTheEnd() throws Exception {
+        Map<String, Object> merged = merge(jsonBuilder().startObject().field("a", 1).endObject(),
+                pending("b", 2), XContentSourceMerger.MERGE_REPLACE);
+        assertThat(result.changed(), equalTo(true));
+        assertThat(Lists.newArrayList(merged.keySet()), contains("a", "b"));
+    }
+
+    @Test
+    public void objectValueReplacesTheWholeObject() throws Exception {
+        Map<String, Object> merged = merge(jsonBuilder().startObject().startObject("user").field("name", "x").endObject().endObject(),
+                pending("user", pending("age", 3)), XContentSourceMerger.MERGE_REPLACE);
+        assertThat(object(merged, "user"), equalTo(pending("age", 3)));
+    }
+
+    @Test
+    public void pathReplacesANestedFieldOnly() throws Exception {
+        Map<String, Object> merged = merge(jsonBuilder().startObject()
+                .startObject("user").field("name", "x").field("age", 3).endObject()
+                .field("other", 1)
+                .endObject(), pending("/user/name", "y"), XContentSourceMerger.MERGE_REPLACE);
+        assertThat(result.changed(), equalTo(true));
+        assertThat(object(merged, "user"), equalTo(pending("name", "y", "age", 3)));
+        assertThat(merged.get("other"), equalTo((Object) 1));
+    }
+
+    @Test
+    public void pathCreatesMissingObjects() throws Exception {
+        Map<String, Object> merged = merge(jsonBuilder().startObject().field("a", 1).endObject(),
+                pending("/b/c/d", 2), XContentSourceMerger.MERGE_REPLACE);
+        assertThat(object(object(merged, "b"), "c"), equalTo(pending("d", 2)));
+    }
+
+    @Test
+    public void pathThroughANullFieldCreatesTheObject() throws Exception {
+        Map<String, Object> merged = merge(jsonBuilder().startObject().nullField("user").endObject(),
+                pending("/user/name", "y"), XContentSourceMerger.MERGE_REPLACE);
+        assertThat(object(merged, "user"), equalTo(pending("name", "y")));
+    }
+
+    @Test(expected = ElasticsearchIllegalArgumentException.class)
+    public void pathThroughAValueFails() throws Exception {
+        merge(jsonBuilder().startObject().field("user", "x").endObject(), pending("/user/name", "y"), XContentSourceMerger.MERGE_REPLACE);
+    }
+
+    @Test
+    public void nullValues() throws Exception {
+        Map<String, Object> merged = merge(jsonBuilder().startObject().field("name", "x").nullField("gone").endObject(),
+                pending("name", null, "gone", null, "new", null), XContentSourceMerger.MERGE_REPLACE);
+        assertThat(result.changed(), equalTo(true));
+        assertThat(merged, hasKey("name"));
+        assertThat(merged.get("name"), nullValue());
+        assertThat(merged, hasKey("new"));
+
+        merge(jsonBuilder().startObject().nullField("gone").endObject(), pending("gone", null), XContentSourceMerger.MERGE_REPLACE);
+        assertThat(result.changed(), equalTo(false));
+    }
+
+    @Test
+    public void appendAddsASingleValueAlwaysAndArrayValuesNotPresentYet() throws Exception {
+        XContentBuilder source = jsonBuilder().startObject().field("tags", "a", "b").endObject();
+        assertThat(merge(source, pending("tags", "a"), XContentSourceMerger.MERGE_APPEND).get("tags"),
+                equalTo((Object) list("a", "b", "a")));
+        source = jsonBuilder().startObject().field("tags", "a", "b").endObject();
+        assertThat(merge(source, pending("tags", list("b", "c")), XContentSourceMerger.MERGE_APPEND).get("tags"),
+                equalTo((Object) list("a", "b", "c")));
+        assertThat(result.changed(), equalTo(true));
+        source = jsonBuilder().startObject().field("tags", "a", "b").endObject();
+        merge(source, pending("tags", list("a", "b")), XContentSourceMerger.MERGE_APPEND);
+        assertThat(result.changed(), equalTo(false));
+    }
+
+    @Test
+    public void appendKeepsTheLastCapElements() throws Exception {
+        Map<String, Object> merged = merge(jsonBuilder().startObject().field("tags", "a", "b").endObject(),
+                pending("tags", "c"), XContentSourceMerger.MERGE_APPEND, 2);
+        assertThat(result.changed(), equalTo(true));
+        assertThat(merged.get("tags"), equalTo((Object) list("b", "c")));
+    }
+
+    @Test
+    public void appendToANestedArrayByPath() throws Exception {
+        Map<String, Object> merged = merge(jsonBuilder().startObject()
+                .startObject("user").field("tags", "a").field("name", "x").endObject()
+                .endObject(), pending("/user/tags", list("b")), XContentSourceMerger.MERGE_APPEND);
+        assertThat(object(merged, "user"), equalTo(pending("tags", list("a", "b"), "name", "x")));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void appendObjectsToAnArray() throws Exception {
+        Map<String, Object> merged = merge(jsonBuilder().startObject()
+                .startArray("items").startObject().field("id", 1).endObject().endArray()
+                .endObject(), pending("items", list(pending("id", 1), pending("id", 2))), XContentSourceMerger.MERGE_APPEND);
+        List<Object> items = (List<Object>) merged.get("items");
+        assertThat(items, equalTo(list(pending("id", 1), pending("id", 2))));
+    }
+
+    @Test
+    public void arrayModeOnAValueReplacesIt() throws Exception {
+        Map<String, Object> merged = merge(jsonBuilder().startObject().field("name", "x").endObject(),
+                pending("name", "y"), XContentSourceMerger.MERGE_APPEND);
+        assertThat(merged.get("name"), equalTo((Object) "y"));
+    }
+
+    @Test
+    public void removeDropsTheFirstOccurrenceOfEachValue() throws Exception {
+        Map<String, Object> merged = merge(jsonBuilder().startObject().field("tags", "a", "b", "a").endObject(),
+                pending("tags", list("a")), XContentSourceMerger.MERGE_REMOVE);
+        assertThat(result.changed(), equalTo(true));
+        assertThat(merged.get("tags"), equalTo((Object) list("b", "a")));
+
+        merged = merge(jsonBuilder().startObject().field("tags", "a", "b", "a").endObject(),
+                pending("tags", "a"), XContentSourceMerger.MERGE_REMOVE);
+        assertThat(merged.get("tags"), equalTo((Object) list("b", "a")));
+    }
+
+    @Test
+    public void removeOfAMissingValueIsANoop() throws Exception {
+        Map<String, Object> merged = merge(jsonBuilder().startObject().field("tags", "a", "b").endObject(),
+                pending("tags", list("c")), XContentSourceMerger.MERGE_REMOVE);
+        assertThat(result.changed(), equalTo(false));
+        assertThat(merged.get("tags"), equalTo((Object) list("a", "b")));
+    }
+
+    @Test
+    public void addToSetDropsDuplicates() throws Exception {
+        Map<String, Object> merged = merge(jsonBuilder().startObject().field("tags", "a", "a").endObject(),
+                pending("tags", list("b")), XContentSourceMerger.MERGE_ADD_TO_SET);
+        assertThat(result.changed(), equalTo(true));
+        assertThat(merged.get("tags"), equalTo((Object) list("a", "b")));
+    }
+
+    @Test
+    public void unionTurnsValuesIntoArrays() throws Exception {
+        Map<String, Object> merged = merge(jsonBuilder().startObject().field("tags", "a", "a").endObject(),
+                pending("tags", list("b")), XContentSourceMerger.MERGE_UNION);
+        assertThat(result.changed(), equalTo(true));
+        assertThat(merged.get("tags"), equalTo((Object) list("a", "b")));
+
+        merged = merge(jsonBuilder().startObject().field("tag", "a").endObject(), pending("tag", list("b")), XContentSourceMerger.MERGE_UNION);
+        assertThat(merged.get("tag"), equalTo((Object) list("a", "b")));
+
+        merged = merge(jsonBuilder().startObject().nullField("tag").endObject(), pending("tag", "b"), XContentSourceMerger.MERGE_UNION);
+        assertThat(merged.get("tag"), equalTo((Object) list("b")));
+
+        merged = merge(jsonBuilder().startObject().field("other", 1).endObject(), pending("tag", list("a", "a")), XContentSourceMerger.MERGE_UNION);
+        assertThat(merged.get("tag"), equalTo((Object) list("a")));
+    }
+
+    @Test
+    public void unionThatAddsNothingIsANoop() throws Exception {
+        merge(jsonBuilder().startObject().field("tag", "a").endObject(), pending("tag", list("a")), XContentSourceMerger.MERGE_UNION);
+        assertThat(result.changed(), equalTo(false));
+        merge(jsonBuilder().startObject().field("tags", "a", "b").endObject(), pending("tags", "b"), XContentSourceMerger.MERGE_UNION);
+        assertThat(result.changed(), equalTo(false));
+
+        merge(jsonBuilder().startObject().nullField("tag").endObject(), pending("tag", "a"), XContentSourceMerger.MERGE_UNION);
+        assertThat(result.changed(), equalTo(true));
+        merge(jsonBuilder().startObject().field("tag", "a").endObject(), pending("tag", "b"), XContentSourceMerger.MERGE_UNION);
+        assertThat(result.changed(), equalTo(true));
+    }
+
+    @Test
+    public void unionIntoANestedArrayByPath() throws Exception {
+        Map<String, Object> merged = merge(jsonBuilder().startObject()
+                .startObject("user").field("tags", "a").endObject()
+                .endObject(), pending("/user/tags", list("a", "b")), XContentSourceMerger.MERGE_UNION);
+        assertThat(object(merged, "user"), equalTo(pending("tags", list("a", "b"))));
+    }
+
+    @Test
+    public void timestampIsWrittenButIsNoChange() throws Exception {
+        Map<String, Object> merged = merge(jsonBuilder().startObject().field("n", 1).field(PartialUpdateHelper.LAST_PARTIAL_UPDATED, 5).endObject(),
+                pending("n", 1), XContentSourceMerger.MERGE_REPLACE, 0, 100);
+        assertThat(result.changed(), equalTo(false));
+        assertThat(merged.get(PartialUpdateHelper.LAST_PARTIAL_UPDATED), equalTo((Object) 100));
+
+        merged = merge(jsonBuilder().startObject().field("n", 1).field(PartialUpdateHelper.LAST_PARTIAL_UPDATED, 5).endObject(),
+                pending("n", 2), XContentSourceMerger.MERGE_REPLACE);
+        assertThat(merged.get(PartialUpdateHelper.LAST_PARTIAL_UPDATED), equalTo((Object) 5));
+    }
+
+    @Test
+    public void timestampCanBeSetWhenNotTouched() throws Exception {
+        Map<String, Object> merged = merge(jsonBuilder().startObject().field("n", 1).field(PartialUpdateHelper.LAST_PARTIAL_UPDATED, 5).endObject(),
+                pending(PartialUpdateHelper.LAST_PARTIAL_UPDATED, 7), XContentSourceMerger.MERGE_REPLACE);
+        assertThat(result.changed(), equalTo(true));
+        assertThat(merged.get(PartialUpdateHelper.LAST_PARTIAL_UPDATED), equalTo((Object) 7));
+
+        merged = merge(jsonBuilder().startObject().field("n", 1).endObject(),
+                pending(PartialUpdateHelper.LAST_PARTIAL_UPDATED, 7), XContentSourceMerger.MERGE_REPLACE);
+        assertThat(merged.get(PartialUpdateHelper.LAST_PARTIAL_UPDATED), equalTo((Object) 7));
+
+        // a touched timestamp wins over the patched one
+        merged = merge(jsonBuilder().startObject().field("n", 1).field(PartialUpdateHelper.LAST_PARTIAL_UPDATED, 5).endObject(),
+                pending(PartialUpdateHelper.LAST_PARTIAL_UPDATED, 7), XContentSourceMerger.MERGE_REPLACE, 0, 100);
+        assertThat(merged.get(PartialUpdateHelper.LAST_PARTIAL_UPDATED), equalTo((Object) 100));
+    }
+
+    @Test
+    public void smileSourceStaysSmile() throws Exception {
+        XContentBuilder source = XContentFactory.smileBuilder().startObject()
+                .field("name", "x")
+                .field("tags", "a", "b")
+                .startObject("user").field("age", 3).endObject()
+                .endObject();
+        Map<String, Object> merged = merge(source, pending("name", "y", "/user/age", 4), XContentSourceMerger.MERGE_REPLACE);
+        assertThat(XContentFactory.xContentType(result.source().bytes()), equalTo(XContentType.SMILE));
+        assertThat(merged.get("name"), equalTo((Object) "y"));
+        assertThat(merged.get("tags"), equalTo((Object) list("a", "b")));
+        assertThat(object(merged, "user"), equalTo(pending("age", 4)));
+
+        source = XContentFactory.smileBuilder().startObject().field("tags", "a", "b").endObject();
+        merged = merge(source, pending("tags", list("a")), XContentSourceMerger.MERGE_REMOVE);
+        assertThat(merged.get("tags"), equalTo((Object) list("b")));
+    }
+
+    @Test
+    public void compressedSource() throws Exception {
+        BytesReference raw = jsonBuilder().startObject().field("name", "x").field("tags", "a").endObject().bytes();
+        byte[] bytes = raw.toBytes();
+        BytesReference compressed = new BytesArray(CompressorFactory.defaultCompressor().compress(bytes, 0, bytes.length));
+        assertThat(CompressorFactory.isCompressed(compressed), equalTo(true));
+
+        result = merger.merge(compressed, pending("tags", list("b")), false, XContentSourceMerger.MERGE_UNION, 0, -1);
+        Map<String, Object> merged = XContentHelper.convertToMap(result.source().bytes(), true).v2();
+        assertThat(result.changed(), equalTo(true));
+        assertThat(merged.get("name"), equalTo((Object) "x"));
+        assertThat(merged.get("tags"), equalTo((Object) list("a", "b")));
+    }
+
+    private Map<String, Object> merge(XContentBuilder source, Map<String, Object> pending, String arrayMerge) throws Exception {
+        return merge(source, pending, arrayMerge, 0);
+    }
+
+    private Map<String, Object> merge(XContentBuilder source, Map<String, Object> pending, String arrayMerge, int arrayCap) throws Exception {
+        return merge(source, pending, arrayMerge, arrayCap, -1);
+    }
+
+    private Map<String, Object> merge(XContentBuilder source, Map<String, Object> pending, String arrayMerge, int arrayCap,
+                                      long timestamp) throws Exception {
+        result = merger.merge(source.bytes(), pending, false, arrayMerge, arrayCap, timestamp);
+        return XContentHelper.convertToMap(result.source().bytes(), true).v2();
+    }
+
+    static Map<String, Object> pending(Object... keysAndValues) {
+        Map<String, Object> map = Maps.newLinkedHashMap();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            map.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return map;
+    }
+
+    static List<Object> list(Object... values) {
+        return Lists.newArrayList(values);
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> object(Map<String, Object> map, String field) {
+        return (Map<String, Object>) map.get(field);
+    }
+}